@@ -0,0 +1,457 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+
+/**
+ * Allocation state of every logical JBoss server of the domain.
+ *
+ * A logical server is a slot that lives for the whole application and is
+ * filled by one container at a time. It moves from NEW (needs an ask) to
+ * REQUESTED, ALLOCATED, LAUNCHING and RUNNING, and ends in COMPLETED or
+ * FAILED. A server whose container fails, is lost or cannot be started goes
+ * back to NEW and is asked for again until it has failed too often. All
+ * counts are derived from the servers, so they cannot drift apart.
+ *
+ * The domain grows by adding servers and shrinks by retiring them. A server
+ * without a container is RETIRED at once; one with a container is RETIRING
+ * until the container completes, however it completes.
+ */
+public class AllocationTracker {
+
+	private static final Logger LOG = Logger.getLogger(AllocationTracker.class
+			.getName());
+
+	public enum State {
+		NEW, REQUESTED, ALLOCATED, LAUNCHING, RUNNING, COMPLETED, FAILED, RETIRING, RETIRED
+	}
+
+	/**
+	 * One logical JBoss server.
+	 */
+	public static class Server {
+
+		private final int index;
+		private State state = State.NEW;
+		private Container container;
+		private int failures;
+		private int restarts;
+		private String lastRestartCause;
+		private JvmSizing jvmSizing;
+
+		Server(int index) {
+			this.index = index;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public Container getContainer() {
+			return container;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return Restarts in place of the server, over all its containers
+		 */
+		public int getRestarts() {
+			return restarts;
+		}
+
+		/**
+		 * @return Why the server was last restarted in place, or null
+		 */
+		public String getLastRestartCause() {
+			return lastRestartCause;
+		}
+
+		/**
+		 * @return JVM sizing of the server's latest launch, or null if it
+		 *         has not been launched yet
+		 */
+		public JvmSizing getJvmSizing() {
+			return jvmSizing;
+		}
+
+		@Override
+		public String toString() {
+			return "server-" + index + "[" + state
+					+ (container == null ? "" : ", " + container.getId())
+					+ "]";
+		}
+	}
+
+	private final List<Server> servers = new ArrayList<Server>();
+	private final Map<ContainerId, Server> serversByContainer = new HashMap<ContainerId, Server>();
+	private final int maxFailures;
+	private int numFailedContainers;
+	private int numReleasedContainers;
+	private int numRestarts;
+
+	/**
+	 * @param numServers
+	 *            Number of servers in the domain
+	 * @param maxFailures
+	 *            Container failures after which a server is given up
+	 */
+	public AllocationTracker(int numServers, int maxFailures) {
+		this.maxFailures = maxFailures;
+		for (int i = 0; i < numServers; i++) {
+			servers.add(new Server(i));
+		}
+	}
+
+	/**
+	 * Move every server that needs a container to REQUESTED. The caller must
+	 * ask the RM for exactly the returned number of containers.
+	 *
+	 * @return Number of containers to ask for
+	 */
+	public synchronized int reconcile() {
+		int asks = 0;
+		for (Server server : servers) {
+			if (server.state == State.NEW) {
+				server.state = State.REQUESTED;
+				asks++;
+			}
+		}
+		return asks;
+	}
+
+	/**
+	 * Assign an allocated container to a server waiting for one.
+	 *
+	 * @param container
+	 *            Container allocated by the RM
+	 * @return Server the container belongs to, or null if no server is
+	 *         waiting and the container should be released
+	 */
+	public synchronized Server allocated(Container container) {
+		for (Server server : servers) {
+			if (server.state == State.REQUESTED) {
+				server.state = State.ALLOCATED;
+				server.container = container;
+				serversByContainer.put(container.getId(), server);
+				return server;
+			}
+		}
+		numReleasedContainers++;
+		return null;
+	}
+
+	/**
+	 * Record that a container is being launched.
+	 *
+	 * @param containerId
+	 *            Container being launched
+	 * @param jvmSizing
+	 *            JVM sizing the container is launched with
+	 */
+	public synchronized void launching(ContainerId containerId,
+			JvmSizing jvmSizing) {
+		Server server = serversByContainer.get(containerId);
+		if (server != null) {
+			server.jvmSizing = jvmSizing;
+		}
+		transition(containerId, State.ALLOCATED, State.LAUNCHING);
+	}
+
+	/**
+	 * @return Number of servers that are wanted, i.e. neither finished nor
+	 *         retired
+	 */
+	public synchronized int getTargetCount() {
+		int count = 0;
+		for (Server server : servers) {
+			if (isWanted(server)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Grow the domain. The new servers are NEW and need asks, see
+	 * {@link #reconcile()}.
+	 *
+	 * @param count
+	 *            Number of servers to add
+	 */
+	public synchronized void addServers(int count) {
+		for (int i = 0; i < count; i++) {
+			servers.add(new Server(servers.size()));
+		}
+	}
+
+	/**
+	 * Retire servers that hold no container, newest first. The asks of
+	 * retired REQUESTED servers are still outstanding; the caller must
+	 * withdraw them.
+	 *
+	 * @param count
+	 *            Maximum number of servers to retire
+	 * @return Number of servers retired
+	 */
+	public synchronized int retireIdle(int count) {
+		int retired = 0;
+		for (int i = servers.size() - 1; i >= 0 && retired < count; i--) {
+			Server server = servers.get(i);
+			if (server.state == State.NEW || server.state == State.REQUESTED) {
+				server.state = State.RETIRED;
+				retired++;
+			}
+		}
+		return retired;
+	}
+
+	/**
+	 * @return Servers holding a container that could be retired
+	 */
+	public synchronized List<Server> getRetirementCandidates() {
+		List<Server> candidates = new ArrayList<Server>();
+		for (Server server : servers) {
+			if (server.container != null && isWanted(server)) {
+				candidates.add(server);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Start retiring the server of a container. The caller must stop or
+	 * release the container; its completion retires the server.
+	 *
+	 * @param containerId
+	 *            Container of the server
+	 * @return true if the server is now RETIRING
+	 */
+	public synchronized boolean retire(ContainerId containerId) {
+		Server server = serversByContainer.get(containerId);
+		if (server == null || !isWanted(server)) {
+			return false;
+		}
+		server.state = State.RETIRING;
+		return true;
+	}
+
+	private static boolean isWanted(Server server) {
+		switch (server.state) {
+		case COMPLETED:
+		case FAILED:
+		case RETIRING:
+		case RETIRED:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	public synchronized void started(ContainerId containerId) {
+		transition(containerId, State.LAUNCHING, State.RUNNING);
+	}
+
+	/**
+	 * Record a restart in place of a server by the supervisor in its
+	 * container. The container is kept, so the state does not change.
+	 *
+	 * @param containerId
+	 *            Container whose server restarted
+	 * @param cause
+	 *            Why the server had stopped
+	 * @return Server restarted, or null if the container is not ours
+	 */
+	public synchronized Server restarted(ContainerId containerId, String cause) {
+		Server server = serversByContainer.get(containerId);
+		if (server != null) {
+			server.restarts++;
+			server.lastRestartCause = cause;
+			numRestarts++;
+		}
+		return server;
+	}
+
+	/**
+	 * Record a container that could not be launched. The caller must release
+	 * it; its server will be asked for again.
+	 *
+	 * @param containerId
+	 *            Container that failed to launch
+	 */
+	public synchronized void launchFailed(ContainerId containerId) {
+		Server server = serversByContainer.remove(containerId);
+		if (server != null && server.state == State.RETIRING) {
+			server.container = null;
+			server.state = State.RETIRED;
+		} else if (server != null) {
+			numFailedContainers++;
+			vacate(server, true);
+		}
+	}
+
+	/**
+	 * Record a completed container.
+	 *
+	 * @param containerStatus
+	 *            Completion status reported by the RM
+	 * @return Server the container belonged to, or null if it was not ours
+	 *         any more, e.g. a released surplus container
+	 */
+	public synchronized Server completed(ContainerStatus containerStatus) {
+		Server server = serversByContainer.remove(containerStatus
+				.getContainerId());
+		if (server == null) {
+			return null;
+		}
+		int exitStatus = containerStatus.getExitStatus();
+		if (server.state == State.RETIRING) {
+			server.container = null;
+			server.state = State.RETIRED;
+		} else if (exitStatus == 0) {
+			server.state = State.COMPLETED;
+		} else if (exitStatus == ContainerExitStatus.ABORTED) {
+			vacate(server, false);
+		} else {
+			numFailedContainers++;
+			vacate(server, true);
+		}
+		return server;
+	}
+
+	private void vacate(Server server, boolean failed) {
+		server.container = null;
+		if (failed && ++server.failures >= maxFailures) {
+			LOG.warning("Giving up on " + server + " after "
+					+ server.failures + " failures");
+			server.state = State.FAILED;
+		} else {
+			server.state = State.NEW;
+		}
+	}
+
+	private void transition(ContainerId containerId, State from, State to) {
+		Server server = serversByContainer.get(containerId);
+		if (server != null && server.state == from) {
+			server.state = to;
+		}
+	}
+
+	/**
+	 * @return true once every server has completed, retired or been given
+	 *         up
+	 */
+	public synchronized boolean isFinished() {
+		for (Server server : servers) {
+			if (server.state != State.COMPLETED
+					&& server.state != State.FAILED
+					&& server.state != State.RETIRED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if every server completed or retired, none given up
+	 */
+	public synchronized boolean isSucceeded() {
+		for (Server server : servers) {
+			if (server.state != State.COMPLETED
+					&& server.state != State.RETIRED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized Server getServer(ContainerId containerId) {
+		return serversByContainer.get(containerId);
+	}
+
+	public synchronized int getNumServers() {
+		return servers.size();
+	}
+
+	public synchronized int getCount(State state) {
+		int count = 0;
+		for (Server server : servers) {
+			if (server.state == state) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public synchronized int getNumFailedContainers() {
+		return numFailedContainers;
+	}
+
+	public synchronized int getNumReleasedContainers() {
+		return numReleasedContainers;
+	}
+
+	public synchronized int getNumRestarts() {
+		return numRestarts;
+	}
+
+	/**
+	 * @return Virtual cores granted to the containers the servers hold
+	 */
+	public synchronized int getVirtualCores() {
+		int vcores = 0;
+		for (Server server : serversByContainer.values()) {
+			vcores += server.container.getResource().getVirtualCores();
+		}
+		return vcores;
+	}
+
+	@Override
+	public synchronized String toString() {
+		Map<State, Integer> counts = new EnumMap<State, Integer>(State.class);
+		for (State state : State.values()) {
+			counts.put(state, 0);
+		}
+		for (Server server : servers) {
+			counts.put(server.state, counts.get(server.state) + 1);
+		}
+		return "servers=" + servers.size() + ", " + counts
+				+ ", failedContainers=" + numFailedContainers
+				+ ", releasedContainers=" + numReleasedContainers
+				+ ", restarts=" + numRestarts
+				+ ", vcores=" + getVirtualCores();
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+
+/**
+ * Renders the JBoss configuration of every container in the application
+ * master and stages it in HDFS, so that containers only have to copy the
+ * finished files into place instead of running a configuration JVM.
+ *
+ * The stock host.xml, domain.xml and mgmt-users.properties are read from the
+ * JBoss distribution archive once. domain.xml and mgmt-users.properties are
+ * the same for every container and are rendered and staged once; only
+ * host.xml is rendered per container. The thread pools in domain.xml are
+ * sized from the virtual cores of the first container, as all containers
+ * of the application are asked for with the same capability.
+ *
+ * In standalone mode standalone.xml, rendered from the full-ha profile, and
+ * mgmt-users.properties are shared by all containers. The per container
+ * settings are passed to standalone.sh as system properties.
+ *
+ * The staging directory and the staged files are only accessible to the
+ * application's user.
+ */
+public class ContainerConfigStager {
+
+	private static final Logger LOG = Logger
+			.getLogger(ContainerConfigStager.class.getName());
+
+	public static final String HOST_XML = "host.xml";
+	public static final String DOMAIN_XML = "domain.xml";
+	public static final String MGMT_USERS = "mgmt-users.properties";
+	public static final String STANDALONE_XML = "standalone.xml";
+
+	private static final String STANDALONE_TEMPLATE = "standalone-full-ha.xml";
+
+	private static final FsPermission OWNER_ONLY_DIR = new FsPermission(
+			(short) 0700);
+	private static final FsPermission OWNER_ONLY = new FsPermission(
+			(short) 0600);
+
+	private final LaunchMode mode;
+	private final Configuration conf;
+	private final Path stagingDir;
+	private final String serverGroup;
+	private final String adminUser;
+	private final String adminPassword;
+
+	private byte[] hostTemplate;
+	private ThreadPoolSizing threadPools;
+	private Map<String, LocalResource> sharedResources;
+
+	/**
+	 * @param mode
+	 *            How JBoss runs in the containers
+	 * @param conf
+	 *            Configuration used to reach the file system
+	 * @param stagingDir
+	 *            Directory the rendered files are written to
+	 * @param serverGroup
+	 *            Server group of the domain
+	 * @param adminUser
+	 *            Initial administrator user
+	 * @param adminPassword
+	 *            Password of the initial administrator user
+	 */
+	public ContainerConfigStager(LaunchMode mode, Configuration conf,
+			Path stagingDir, String serverGroup, String adminUser,
+			String adminPassword) {
+		this.mode = mode;
+		this.conf = conf;
+		this.stagingDir = stagingDir;
+		this.serverGroup = serverGroup;
+		this.adminUser = adminUser;
+		this.adminPassword = adminPassword;
+	}
+
+	/**
+	 * Render and stage the configuration of one container.
+	 *
+	 * @param containerId
+	 *            Container the configuration is for
+	 * @param binding
+	 *            Ports of the container's JBoss server
+	 * @param controller
+	 *            Ports of the domain controller
+	 * @param sizing
+	 *            Memory settings of the container's JVMs
+	 * @return Local resources holding the configuration files, keyed by file
+	 *         name
+	 * @throws IOException
+	 *             If the configuration cannot be rendered or staged
+	 */
+	public Map<String, LocalResource> stage(ContainerId containerId,
+			PortOffsetAllocator.Binding binding,
+			PortOffsetAllocator.Binding controller, JvmSizing sizing)
+			throws IOException {
+		Map<String, LocalResource> resources = new HashMap<String, LocalResource>(
+				getSharedResources(sizing));
+		if (mode == LaunchMode.STANDALONE) {
+			return resources;
+		}
+
+		ByteArrayOutputStream hostXml = new ByteArrayOutputStream();
+		DomainConfigRewriter.renderHost(new ByteArrayInputStream(
+				getHostTemplate()), hostXml, serverGroup,
+				containerId.toString(), binding.getPortOffset(),
+				sizing.getServer(), controller.getHost(),
+				controller.getManagementNativePort(), binding.getHost());
+
+		resources.put(HOST_XML,
+				write(new Path(new Path(stagingDir, containerId.toString()),
+						HOST_XML), hostXml.toByteArray()));
+		return resources;
+	}
+
+	/**
+	 * Remove everything staged for the application.
+	 */
+	public void cleanup() {
+		try {
+			stagingDir.getFileSystem(conf).delete(stagingDir, true);
+		} catch (IOException e) {
+			LOG.info("Problem removing staged configuration " + stagingDir
+					+ ": " + e.getMessage());
+		}
+	}
+
+	private synchronized byte[] getHostTemplate() {
+		return hostTemplate;
+	}
+
+	private synchronized Map<String, LocalResource> getSharedResources(
+			JvmSizing sizing) throws IOException {
+		if (sharedResources == null) {
+			threadPools = new ThreadPoolSizing(sizing.getVirtualCores());
+			loadTemplates();
+		} else if (sizing.getVirtualCores() != threadPools.getVirtualCores()) {
+			LOG.warning("Container with " + sizing.getVirtualCores()
+					+ " vcores uses thread pools sized for " + threadPools);
+		}
+		return sharedResources;
+	}
+
+	private void loadTemplates() throws IOException {
+		FileSystem.mkdirs(stagingDir.getFileSystem(conf), stagingDir,
+				OWNER_ONLY_DIR);
+		if (mode == LaunchMode.STANDALONE) {
+			loadStandaloneTemplates();
+			return;
+		}
+
+		Map<String, byte[]> templates = readTemplates("domain", HOST_XML,
+				DOMAIN_XML, MGMT_USERS);
+
+		ByteArrayOutputStream domainXml = new ByteArrayOutputStream();
+		DomainConfigRewriter.renderDomain(new ByteArrayInputStream(
+				templates.get(DOMAIN_XML)), domainXml, serverGroup,
+				threadPools);
+
+		ByteArrayOutputStream users = new ByteArrayOutputStream();
+		DomainConfigRewriter.renderManagementUsers(new ByteArrayInputStream(
+				templates.get(MGMT_USERS)), users, adminUser, adminPassword,
+				true);
+
+		Map<String, LocalResource> shared = new HashMap<String, LocalResource>();
+		shared.put(DOMAIN_XML, write(new Path(stagingDir, DOMAIN_XML),
+				domainXml.toByteArray()));
+		shared.put(MGMT_USERS, write(new Path(stagingDir, MGMT_USERS),
+				users.toByteArray()));
+
+		hostTemplate = templates.get(HOST_XML);
+		sharedResources = shared;
+		LOG.info("Staged shared JBoss configuration in " + stagingDir
+				+ " with " + threadPools);
+	}
+
+	private void loadStandaloneTemplates() throws IOException {
+		Map<String, byte[]> templates = readTemplates("standalone",
+				STANDALONE_TEMPLATE, MGMT_USERS);
+
+		ByteArrayOutputStream standaloneXml = new ByteArrayOutputStream();
+		DomainConfigRewriter.renderStandalone(new ByteArrayInputStream(
+				templates.get(STANDALONE_TEMPLATE)), standaloneXml,
+				threadPools);
+
+		ByteArrayOutputStream users = new ByteArrayOutputStream();
+		DomainConfigRewriter.renderManagementUsers(new ByteArrayInputStream(
+				templates.get(MGMT_USERS)), users, adminUser, adminPassword,
+				false);
+
+		Map<String, LocalResource> shared = new HashMap<String, LocalResource>();
+		shared.put(STANDALONE_XML, write(new Path(stagingDir, STANDALONE_XML),
+				standaloneXml.toByteArray()));
+		shared.put(MGMT_USERS, write(new Path(stagingDir, MGMT_USERS),
+				users.toByteArray()));
+
+		sharedResources = shared;
+		LOG.info("Staged standalone JBoss configuration in " + stagingDir
+				+ " with " + threadPools);
+	}
+
+	/**
+	 * Read stock configuration files out of the JBoss distribution, stopping
+	 * as soon as all of them have been found.
+	 *
+	 * @param base
+	 *            Base directory of the files, domain or standalone
+	 * @param names
+	 *            Names of the files in the base's configuration directory
+	 * @return Content of the files, keyed by name
+	 * @throws IOException
+	 *             If the distribution cannot be read or lacks a file
+	 */
+	private Map<String, byte[]> readTemplates(String base, String... names)
+			throws IOException {
+		String configurationDir = JBossConstants.JBOSS_VERSION + "/" + base
+				+ "/configuration/";
+		List<String> wanted = Arrays.asList(names);
+
+		Path distPath;
+		try {
+			distPath = new Path(new URI(JBossConstants.JBOSS_DIST_PATH));
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid JBoss distribution URI "
+					+ JBossConstants.JBOSS_DIST_PATH, e);
+		}
+
+		Map<String, byte[]> templates = new HashMap<String, byte[]>();
+		InputStream in = distPath.getFileSystem(conf).open(distPath);
+		try {
+			TarArchiveInputStream tar = new TarArchiveInputStream(
+					new GZIPInputStream(in));
+			TarArchiveEntry entry;
+			while (templates.size() < wanted.size()
+					&& (entry = tar.getNextTarEntry()) != null) {
+				String name = entry.getName();
+				int index = name.indexOf(configurationDir);
+				if (index < 0) {
+					continue;
+				}
+				String file = name.substring(index
+						+ configurationDir.length());
+				if (wanted.contains(file)) {
+					templates.put(file, IOUtils.toByteArray(tar));
+				}
+			}
+		} finally {
+			Util.closeCloseable(in);
+		}
+		for (String name : names) {
+			if (!templates.containsKey(name)) {
+				throw new IOException(base + "/configuration/" + name
+						+ " not found in " + JBossConstants.JBOSS_DIST_PATH);
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * Write a staged file readable only by the application's user, as
+	 * mgmt-users.properties holds digests that pass the management realm.
+	 */
+	private LocalResource write(Path path, byte[] content) throws IOException {
+		FileSystem fs = path.getFileSystem(conf);
+		FSDataOutputStream out = FileSystem.create(fs, path, OWNER_ONLY);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return ContainerLaunchTemplate.newFileResource(fs.getFileStatus(path));
+	}
+}
@@ -0,0 +1,320 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.apache.hadoop.yarn.util.Records;
+
+/**
+ * The parts of a JBoss {@link ContainerLaunchContext} that are the same for
+ * every container of an application attempt: the localized JBoss distribution
+ * and application jar, and the environment.
+ *
+ * The file status of each resource is looked up once, on first use, and the
+ * resulting descriptors are shared read-only by every launch context created
+ * afterwards. Containers only add their own commands.
+ *
+ * The JBoss distribution is localized with PUBLIC visibility from a copy
+ * whose path contains the checksum of its content, so every NodeManager
+ * unpacks each distinct distribution once and shares it between all
+ * containers and applications, even if the same archive is uploaded again.
+ * If the file system has no checksums, or the copy is not readable by
+ * everybody, the distribution falls back to APPLICATION visibility.
+ */
+public class ContainerLaunchTemplate {
+
+	private static final Logger LOG = Logger
+			.getLogger(ContainerLaunchTemplate.class.getName());
+
+	private static final String DIST_CACHE_DIR = ".cache";
+	private static final FsPermission PUBLIC_DIR = new FsPermission(
+			(short) 0755);
+	private static final FsPermission PUBLIC_FILE = new FsPermission(
+			(short) 0644);
+
+	private final Configuration conf;
+	private final String appJar;
+	private final Map<String, String> environment;
+
+	private volatile Map<String, LocalResource> localResources;
+
+	/**
+	 * @param conf
+	 *            Configuration used to reach the file system
+	 * @param appJar
+	 *            URI of the JBoss on YARN jar
+	 * @param environment
+	 *            Environment shared by all containers
+	 */
+	public ContainerLaunchTemplate(Configuration conf, String appJar,
+			Map<String, String> environment) {
+		this.conf = conf;
+		this.appJar = appJar;
+		this.environment = Collections
+				.unmodifiableMap(new HashMap<String, String>(environment));
+	}
+
+	/**
+	 * Create a launch context for one container from the template, with
+	 * additional container specific local resources and environment.
+	 *
+	 * @param commands
+	 *            Container specific commands
+	 * @param containerResources
+	 *            Container specific local resources
+	 * @param containerEnvironment
+	 *            Container specific environment variables
+	 * @return New launch context sharing the template's resources
+	 * @throws IOException
+	 *             If the local resources cannot be resolved
+	 */
+	public ContainerLaunchContext newLaunchContext(List<String> commands,
+			Map<String, LocalResource> containerResources,
+			Map<String, String> containerEnvironment) throws IOException {
+		Map<String, LocalResource> resources = new HashMap<String, LocalResource>(
+				getLocalResources());
+		resources.putAll(containerResources);
+		Map<String, String> env = new HashMap<String, String>(environment);
+		env.putAll(containerEnvironment);
+
+		ContainerLaunchContext ctx = Records
+				.newRecord(ContainerLaunchContext.class);
+		ctx.setEnvironment(env);
+		ctx.setLocalResources(resources);
+		ctx.setCommands(commands);
+		return ctx;
+	}
+
+	/**
+	 * Describe a file that the NodeManager should localize for a container.
+	 *
+	 * @param status
+	 *            Status of the file
+	 * @return Application visible local resource for the file
+	 */
+	public static LocalResource newFileResource(FileStatus status) {
+		LocalResource resource = Records.newRecord(LocalResource.class);
+		resource.setType(LocalResourceType.FILE);
+		resource.setVisibility(LocalResourceVisibility.APPLICATION);
+		resource.setResource(ConverterUtils.getYarnUrlFromPath(status
+				.getPath()));
+		resource.setTimestamp(status.getModificationTime());
+		resource.setSize(status.getLen());
+		return resource;
+	}
+
+	/**
+	 * @return Local resources shared by all containers, resolved on first use
+	 * @throws IOException
+	 *             If the file status of a resource cannot be read
+	 */
+	public Map<String, LocalResource> getLocalResources() throws IOException {
+		Map<String, LocalResource> resources = localResources;
+		if (resources == null) {
+			synchronized (this) {
+				resources = localResources;
+				if (resources == null) {
+					resources = resolveLocalResources();
+					localResources = resources;
+				}
+			}
+		}
+		return resources;
+	}
+
+	/**
+	 * Raise the replication of the shared resources to at least the given
+	 * value. Resources already replicated more are left alone.
+	 *
+	 * @param replication
+	 *            Minimum replication
+	 * @throws IOException
+	 *             If a resource cannot be resolved or changed
+	 */
+	public void raiseReplication(short replication) throws IOException {
+		for (LocalResource resource : getLocalResources().values()) {
+			Path path;
+			try {
+				path = ConverterUtils.getPathFromYarnURL(resource
+						.getResource());
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid local resource URL "
+						+ resource.getResource(), e);
+			}
+			FileSystem fs = path.getFileSystem(conf);
+			short current = fs.getFileStatus(path).getReplication();
+			if (current < replication && fs.setReplication(path, replication)) {
+				LOG.info("Raised replication of " + path + " from " + current
+						+ " to " + replication);
+			}
+		}
+	}
+
+	/**
+	 * Drop the cached descriptors, e.g. after the NodeManager reported that a
+	 * resource changed on the source file system. The next launch resolves
+	 * them again.
+	 */
+	public void invalidate() {
+		LOG.info("Invalidating cached container local resources");
+		localResources = null;
+	}
+
+	private Map<String, LocalResource> resolveLocalResources()
+			throws IOException {
+		Map<String, LocalResource> resources = new HashMap<String, LocalResource>();
+		resources.put(JBossConstants.JBOSS_SYMLINK,
+				newDistributionResource(JBossConstants.JBOSS_DIST_PATH));
+		resources.put(JBossConstants.JBOSS_ON_YARN_APP,
+				newLocalResource(appJar, LocalResourceType.FILE));
+
+		LOG.info("Resolved container local resources " + resources.keySet());
+		return Collections.unmodifiableMap(resources);
+	}
+
+	private LocalResource newLocalResource(String uri, LocalResourceType type)
+			throws IOException {
+		Path path = toPath(uri);
+		return newLocalResource(path.getFileSystem(conf), path, type,
+				LocalResourceVisibility.APPLICATION);
+	}
+
+	private LocalResource newLocalResource(FileSystem fs, Path path,
+			LocalResourceType type, LocalResourceVisibility visibility)
+			throws IOException {
+		FileStatus status = fs.getFileStatus(path);
+
+		LocalResource resource = Records.newRecord(LocalResource.class);
+		resource.setType(type);
+		resource.setVisibility(visibility);
+		resource.setResource(ConverterUtils.getYarnUrlFromPath(path));
+		resource.setTimestamp(status.getModificationTime());
+		resource.setSize(status.getLen());
+		return resource;
+	}
+
+	/**
+	 * Describe the JBoss distribution, copying it to its content addressed
+	 * path first if no application did so before.
+	 */
+	private LocalResource newDistributionResource(String uri)
+			throws IOException {
+		Path path = toPath(uri);
+		FileSystem fs = path.getFileSystem(conf);
+
+		FileChecksum checksum = fs.getFileChecksum(path);
+		if (checksum == null) {
+			LOG.info("No checksum for " + path
+					+ ", localizing it per application");
+			return newLocalResource(fs, path, LocalResourceType.ARCHIVE,
+					LocalResourceVisibility.APPLICATION);
+		}
+
+		Path dir = new Path(new Path(path.getParent(), DIST_CACHE_DIR),
+				StringUtils.byteToHexString(checksum.getBytes()));
+		Path cached = new Path(dir, path.getName());
+		if (!fs.exists(cached)) {
+			publish(fs, path, dir, cached);
+		}
+
+		if (!isPublic(fs, cached)) {
+			LOG.warning(cached + " is not readable by everybody,"
+					+ " localizing it per application");
+			return newLocalResource(fs, cached, LocalResourceType.ARCHIVE,
+					LocalResourceVisibility.APPLICATION);
+		}
+		LOG.info("Localizing JBoss distribution from " + cached);
+		return newLocalResource(fs, cached, LocalResourceType.ARCHIVE,
+				LocalResourceVisibility.PUBLIC);
+	}
+
+	/**
+	 * Copy a file to its content addressed path. The copy is renamed into
+	 * place, so concurrent applications never see a partial file.
+	 */
+	private void publish(FileSystem fs, Path source, Path dir, Path target)
+			throws IOException {
+		Path cacheDir = dir.getParent();
+		for (Path mkdir : new Path[] { cacheDir, dir }) {
+			fs.mkdirs(mkdir);
+			fs.setPermission(mkdir, PUBLIC_DIR);
+		}
+		Path tmp = new Path(dir, "." + target.getName() + "."
+				+ System.currentTimeMillis() + ".tmp");
+		LOG.info("Copying " + source + " to " + target);
+		FileUtil.copy(fs, source, fs, tmp, false, conf);
+		fs.setPermission(tmp, PUBLIC_FILE);
+		if (!fs.rename(tmp, target)) {
+			fs.delete(tmp, false);
+			if (!fs.exists(target)) {
+				throw new IOException("Problem copying " + source + " to "
+						+ target);
+			}
+		}
+	}
+
+	/**
+	 * The NodeManager only shares a resource that everybody can read and
+	 * whose ancestors everybody can traverse.
+	 */
+	private static boolean isPublic(FileSystem fs, Path path)
+			throws IOException {
+		FsPermission permission = fs.getFileStatus(path).getPermission();
+		if (!permission.getOtherAction().implies(FsAction.READ)) {
+			return false;
+		}
+		for (Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+			permission = fs.getFileStatus(dir).getPermission();
+			if (!permission.getOtherAction().implies(FsAction.EXECUTE)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Path toPath(String uri) throws IOException {
+		try {
+			return new Path(new URI(uri));
+		} catch (URISyntaxException e) {
+			throw new IOException("Invalid local resource URI " + uri, e);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of threads used by the application master to launch allocated
+ * containers. Launches beyond the pool size wait in a queue whose depth can
+ * be inspected, and every launch is timed from submission to completion.
+ */
+public class ContainerLauncher {
+
+	private static final Logger LOG = Logger.getLogger(ContainerLauncher.class
+			.getName());
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong numSubmitted = new AtomicLong();
+	private final AtomicLong numLaunched = new AtomicLong();
+	private final AtomicLong totalLatencyMs = new AtomicLong();
+	private final AtomicLong maxLatencyMs = new AtomicLong();
+
+	/**
+	 * @param numThreads
+	 *            Maximum number of containers launched concurrently
+	 */
+	public ContainerLauncher(int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException(
+					"Container launcher needs at least one thread, specified="
+							+ numThreads);
+		}
+		executor = new ThreadPoolExecutor(numThreads, numThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new LauncherThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue a container launch. The task runs as soon as a launcher thread is
+	 * free.
+	 *
+	 * @param launch
+	 *            Task that sets up and starts one container
+	 */
+	public void launch(final Runnable launch) {
+		final long submitTime = System.currentTimeMillis();
+		numSubmitted.incrementAndGet();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					launch.run();
+				} finally {
+					recordLatency(System.currentTimeMillis() - submitTime);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting launches and wait for the queued and running ones to
+	 * finish. All launches share the same deadline.
+	 *
+	 * @param timeoutMs
+	 *            Time to wait for all outstanding launches
+	 * @return true if every launch completed before the deadline
+	 */
+	public boolean shutdown(long timeoutMs) {
+		executor.shutdown();
+		try {
+			if (executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOG.warning("Container launches still pending after " + timeoutMs
+				+ " ms, queueDepth=" + getQueueDepth() + ", active="
+				+ getActiveCount());
+		executor.shutdownNow();
+		return false;
+	}
+
+	private void recordLatency(long latencyMs) {
+		numLaunched.incrementAndGet();
+		totalLatencyMs.addAndGet(latencyMs);
+		long max = maxLatencyMs.get();
+		while (latencyMs > max && !maxLatencyMs.compareAndSet(max, latencyMs)) {
+			max = maxLatencyMs.get();
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Container launch took " + latencyMs + " ms, queueDepth="
+					+ getQueueDepth());
+		}
+	}
+
+	/**
+	 * @return Number of launches waiting for a free launcher thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return Number of launches currently running
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public long getNumSubmitted() {
+		return numSubmitted.get();
+	}
+
+	public long getNumLaunched() {
+		return numLaunched.get();
+	}
+
+	/**
+	 * @return Mean time in ms from submission to completion of a launch
+	 */
+	public long getAverageLatencyMs() {
+		long launched = numLaunched.get();
+		return launched == 0 ? 0 : totalLatencyMs.get() / launched;
+	}
+
+	public long getMaxLatencyMs() {
+		return maxLatencyMs.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ContainerLauncher" + ", submitted=" + getNumSubmitted()
+				+ ", launched=" + getNumLaunched() + ", queueDepth="
+				+ getQueueDepth() + ", active=" + getActiveCount()
+				+ ", avgLatencyMs=" + getAverageLatencyMs()
+				+ ", maxLatencyMs=" + getMaxLatencyMs();
+	}
+
+	private static class LauncherThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ContainerLauncher #"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
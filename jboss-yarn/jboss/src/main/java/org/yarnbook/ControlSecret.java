@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Random secret that callers of the application master's control endpoints
+ * must present.
+ *
+ * The application master creates the secret and writes it to a file in the
+ * application's directory that only its owner can read, so only the user
+ * who submitted the application, and the file system's superuser, can read
+ * it back. Callers send it in the {@link JBossConstants#CONTROL_SECRET_HEADER}
+ * header.
+ *
+ * Each container also gets a token of its own, derived from the secret and
+ * the container id, which its supervisor presents when it reports to the
+ * application master. A token only speaks for its own container.
+ */
+public class ControlSecret {
+
+	private static final int SECRET_BYTES = 32;
+	private static final FsPermission OWNER_ONLY = new FsPermission(
+			(short) 0600);
+
+	private final String secret;
+
+	private ControlSecret(String secret) {
+		this.secret = secret;
+	}
+
+	/**
+	 * @return A new random secret
+	 */
+	public static ControlSecret create() {
+		byte[] bytes = new byte[SECRET_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		return new ControlSecret(Hex.encodeHexString(bytes));
+	}
+
+	/**
+	 * Read the secret an application master published.
+	 *
+	 * @param fs
+	 *            File system of the application's directory
+	 * @param file
+	 *            Secret file
+	 * @return The secret
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static String read(FileSystem fs, Path file) throws IOException {
+		InputStream in = fs.open(file);
+		try {
+			return IOUtils.toString(in, "UTF-8").trim();
+		} finally {
+			Util.closeCloseable(in);
+		}
+	}
+
+	/**
+	 * Write the secret to a file only its owner can read. The file is
+	 * created empty with the restricted permission before the secret is
+	 * written.
+	 *
+	 * @param fs
+	 *            File system of the application's directory
+	 * @param file
+	 *            Secret file
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public void publish(FileSystem fs, Path file) throws IOException {
+		OutputStream out = FileSystem.create(fs, file, OWNER_ONLY);
+		try {
+			out.write(secret.getBytes("UTF-8"));
+		} finally {
+			Util.closeCloseable(out);
+		}
+	}
+
+	/**
+	 * @param presented
+	 *            Secret sent by a caller, may be null
+	 * @return true if it is this secret, compared in constant time
+	 */
+	public boolean matches(String presented) {
+		return equal(secret, presented);
+	}
+
+	/**
+	 * @param containerId
+	 *            Container to get the token for
+	 * @return HMAC-SHA256 of the container id keyed with the secret
+	 */
+	public String getToken(ContainerId containerId) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+			return Hex.encodeHexString(mac.doFinal(containerId.toString()
+					.getBytes("UTF-8")));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 not available", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+	}
+
+	/**
+	 * @param containerId
+	 *            Container a caller speaks for
+	 * @param presented
+	 *            Token sent by the caller, may be null
+	 * @return true if it is the container's token, compared in constant
+	 *         time
+	 */
+	public boolean matchesToken(ContainerId containerId, String presented) {
+		return equal(getToken(containerId), presented);
+	}
+
+	private static boolean equal(String expected, String presented) {
+		return presented != null
+				&& MessageDigest.isEqual(expected.getBytes(),
+						presented.getBytes());
+	}
+}
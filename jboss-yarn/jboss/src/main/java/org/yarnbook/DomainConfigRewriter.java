@@ -0,0 +1,510 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Applies all edits the JBoss domain configuration needs in a single
+ * streaming pass per file.
+ *
+ * Every file is read once and written once. The StAX factories are created
+ * once and shared. When a file is rewritten in place the result goes to a
+ * temporary file in the same directory first, which is then renamed over the
+ * original, so a crash never leaves a half-edited file behind.
+ */
+public class DomainConfigRewriter {
+
+	private static final Logger LOG = Logger
+			.getLogger(DomainConfigRewriter.class.getName());
+
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory
+			.newInstance();
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory
+			.newInstance();
+	private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory
+			.newInstance();
+
+	static {
+		INPUT_FACTORY.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	private static final String WEB_SUBSYSTEM = "urn:jboss:domain:web:";
+	private static final String EJB3_SUBSYSTEM = "urn:jboss:domain:ejb3:";
+
+	private DomainConfigRewriter() {
+	}
+
+	/**
+	 * Configure a JBoss installation in place: add the users to
+	 * mgmt-users.properties, the server group to domain.xml, and the server
+	 * and domain controller to host.xml.
+	 *
+	 * @param jbossHome
+	 *            JBoss AS home directory
+	 * @param serverGroup
+	 *            Server group of the domain
+	 * @param server
+	 *            Name of the JBoss server
+	 * @param portOffset
+	 *            Port offset of the JBoss server
+	 * @param adminUser
+	 *            Initial administrator user
+	 * @param adminPassword
+	 *            Password of the initial administrator user
+	 * @param controller
+	 *            Host of the domain controller
+	 * @param controllerPort
+	 *            Native management port of the domain controller
+	 * @param host
+	 *            Host of the JBoss server
+	 * @throws IOException
+	 *             If a file cannot be read, rewritten or replaced
+	 */
+	public static void configure(String jbossHome, final String serverGroup,
+			final String server, final int portOffset,
+			final String adminUser, final String adminPassword,
+			final String controller, final int controllerPort,
+			final String host) throws IOException {
+		File dir = new File(jbossHome, "domain" + File.separator
+				+ "configuration");
+
+		LOG.info(String.format("Adding users %s, %s and %s to %s", adminUser,
+				Util.MASTER_USER, Util.SLAVE_USER, dir));
+		rewrite(new File(dir, ContainerConfigStager.MGMT_USERS),
+				new Rewrite() {
+					public void apply(InputStream in, OutputStream out)
+							throws IOException {
+						renderManagementUsers(in, out, adminUser,
+								adminPassword, true);
+					}
+				});
+
+		LOG.info(String.format("Adding server group %s to %s", serverGroup,
+				dir));
+		rewrite(new File(dir, ContainerConfigStager.DOMAIN_XML),
+				new Rewrite() {
+					public void apply(InputStream in, OutputStream out)
+							throws IOException {
+						renderDomain(in, out, serverGroup, null);
+					}
+				});
+
+		LOG.info(String.format(
+				"Adding server %s with port offset %s and controller %s:%s to %s",
+				server, portOffset, controller, controllerPort, dir));
+		rewrite(new File(dir, ContainerConfigStager.HOST_XML), new Rewrite() {
+			public void apply(InputStream in, OutputStream out)
+					throws IOException {
+				renderHost(in, out, serverGroup, server, portOffset, null,
+						controller, controllerPort, host);
+			}
+		});
+	}
+
+	/**
+	 * Configure a standalone JBoss installation in place: add the user to
+	 * mgmt-users.properties.
+	 *
+	 * @param jbossHome
+	 *            JBoss AS home directory
+	 * @param adminUser
+	 *            Initial administrator user
+	 * @param adminPassword
+	 *            Password of the initial administrator user
+	 * @throws IOException
+	 *             If the file cannot be read, rewritten or replaced
+	 */
+	public static void configureStandalone(String jbossHome,
+			final String adminUser, final String adminPassword)
+			throws IOException {
+		File dir = new File(jbossHome, "standalone" + File.separator
+				+ "configuration");
+
+		LOG.info(String.format("Adding user %s to %s", adminUser, dir));
+		rewrite(new File(dir, ContainerConfigStager.MGMT_USERS),
+				new Rewrite() {
+					public void apply(InputStream in, OutputStream out)
+							throws IOException {
+						renderManagementUsers(in, out, adminUser,
+								adminPassword, false);
+					}
+				});
+	}
+
+	/**
+	 * Copy mgmt-users.properties and append the administrator user.
+	 *
+	 * @param domainUsers
+	 *            Whether to add the master and slave users the hosts of a
+	 *            domain authenticate with
+	 */
+	public static void renderManagementUsers(InputStream in, OutputStream out,
+			String adminUser, String adminPassword, boolean domainUsers)
+			throws IOException {
+		IOUtils.copy(in, out);
+		StringBuilder users = new StringBuilder();
+		users.append(Util.formatUser(adminUser, adminPassword,
+				JBossConstants.JBOSS_MGT_REALM));
+		if (domainUsers) {
+			users.append(Util.formatUser(Util.MASTER_USER,
+					Util.MASTER_PASSWORD, JBossConstants.JBOSS_MGT_REALM));
+			users.append(Util.formatUser(Util.SLAVE_USER, Util.SLAVE_PASSWORD,
+					JBossConstants.JBOSS_MGT_REALM));
+		}
+		out.write(users.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Copy standalone.xml, sizing the HTTP connector of the web subsystem and
+	 * the default thread pool of the EJB3 subsystem. The pool size is the
+	 * count of the pool's max-threads element.
+	 *
+	 * @param threadPools
+	 *            Thread pool sizes, or null to keep those of the file
+	 */
+	public static void renderStandalone(InputStream in, OutputStream out,
+			ThreadPoolSizing threadPools) throws IOException {
+		renderDomain(in, out, null, threadPools);
+	}
+
+	/**
+	 * Copy domain.xml and add the server group before the end of the root
+	 * element. The HTTP connector of the web subsystems and the default
+	 * thread pool of the EJB3 subsystems are sized on the way.
+	 *
+	 * @param serverGroup
+	 *            Server group to add, or null to add none
+	 * @param threadPools
+	 *            Thread pool sizes, or null to keep those of the file
+	 */
+	public static void renderDomain(InputStream in, OutputStream out,
+			String serverGroup, ThreadPoolSizing threadPools)
+			throws IOException {
+		try {
+			XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+			XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out,
+					"UTF-8");
+			int depth = 0;
+			String subsystem = "";
+			boolean inEjbPool = false;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement start = event.asStartElement();
+					String name = start.getName().getLocalPart();
+					depth++;
+					if ("subsystem".equals(name)) {
+						subsystem = start.getName().getNamespaceURI();
+					} else if (threadPools != null
+							&& subsystem.startsWith(WEB_SUBSYSTEM)
+							&& "connector".equals(name)
+							&& "http".equals(getAttribute(start, "name"))) {
+						event = withAttribute(start, "max-connections",
+								String.valueOf(threadPools
+										.getWebMaxConnections()));
+					} else if (threadPools != null
+							&& subsystem.startsWith(EJB3_SUBSYSTEM)
+							&& "thread-pool".equals(name)
+							&& "default".equals(getAttribute(start, "name"))) {
+						inEjbPool = true;
+					} else if (inEjbPool && "max-threads".equals(name)) {
+						event = withAttribute(start, "count",
+								String.valueOf(threadPools.getEjbMaxThreads()));
+					}
+				} else if (event.isEndElement()) {
+					String name = event.asEndElement().getName()
+							.getLocalPart();
+					if ("subsystem".equals(name)) {
+						subsystem = "";
+					} else if ("thread-pool".equals(name)) {
+						inEjbPool = false;
+					}
+					if (depth == 1 && serverGroup != null) {
+						writeServerGroups(writer, serverGroup);
+					}
+					depth--;
+				}
+				writer.add(event);
+			}
+			writer.flush();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Problem rewriting domain configuration", e);
+		}
+	}
+
+	/**
+	 * Copy host.xml, naming the host master or slave, adding the domain
+	 * controller before the interfaces and the server before the end of the
+	 * root element. Slaves also get the secret they use to authenticate
+	 * against the controller.
+	 *
+	 * @param serverJvm
+	 *            Memory settings of the server JVM, or null to inherit those
+	 *            of the server group
+	 */
+	public static void renderHost(InputStream in, OutputStream out,
+			String serverGroup, String server, int portOffset,
+			JvmSizing.Jvm serverJvm, String controller, int controllerPort,
+			String host) throws IOException {
+		boolean isController = controller.equals(host)
+				&& controllerPort == JBossConstants.MANAGEMENT_NATIVE_PORT
+						+ portOffset;
+		try {
+			XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+			XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out,
+					"UTF-8");
+			int depth = 0;
+			boolean inManagement = false;
+			boolean inRealm = false;
+			boolean identitiesWritten = false;
+			boolean controllerWritten = false;
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement start = event.asStartElement();
+					String name = start.getName().getLocalPart();
+					depth++;
+					if (depth == 1) {
+						event = withAttribute(start, "name",
+								isController ? Util.MASTER_USER
+										: Util.SLAVE_USER);
+					} else if (depth == 2 && "management".equals(name)) {
+						inManagement = true;
+					} else if (inManagement
+							&& "security-realm".equals(name)
+							&& JBossConstants.JBOSS_MGT_REALM
+									.equals(getAttribute(start, "name"))) {
+						inRealm = true;
+					} else if (inRealm && !isController && !identitiesWritten
+							&& "authentication".equals(name)) {
+						writeServerIdentities(writer);
+						identitiesWritten = true;
+					} else if (!controllerWritten
+							&& "interfaces".equals(name)) {
+						writeDomainController(writer, isController,
+								controller, controllerPort);
+						controllerWritten = true;
+					}
+				} else if (event.isEndElement()) {
+					String name = event.asEndElement().getName()
+							.getLocalPart();
+					if (depth == 1) {
+						if (!controllerWritten) {
+							writeDomainController(writer, isController,
+									controller, controllerPort);
+							controllerWritten = true;
+						}
+						writeServers(writer, serverGroup, server, portOffset,
+								serverJvm);
+					} else if (depth == 2 && "management".equals(name)) {
+						inManagement = false;
+					} else if ("security-realm".equals(name)) {
+						inRealm = false;
+					}
+					depth--;
+				}
+				writer.add(event);
+			}
+			writer.flush();
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Problem rewriting host configuration", e);
+		}
+	}
+
+	private static void writeServerGroups(XMLEventWriter writer,
+			String serverGroup) throws XMLStreamException {
+		start(writer, "server-groups");
+		start(writer, "server-group", "name", serverGroup, "profile",
+				"full-ha");
+		start(writer, "jvm", "name", "default");
+		start(writer, "heap", "size", "64m", "max-size", "512m");
+		end(writer, "heap");
+		end(writer, "jvm");
+		start(writer, "socket-binding-group", "ref", "full-sockets");
+		end(writer, "socket-binding-group");
+		end(writer, "server-group");
+		end(writer, "server-groups");
+	}
+
+	private static void writeServers(XMLEventWriter writer,
+			String serverGroup, String server, int portOffset,
+			JvmSizing.Jvm serverJvm) throws XMLStreamException {
+		start(writer, "servers");
+		start(writer, "server", "name", server, "group", serverGroup);
+		if (serverJvm != null) {
+			writeJvm(writer, serverJvm);
+		}
+		start(writer, "socket-bindings", "port-offset",
+				String.valueOf(portOffset));
+		end(writer, "socket-bindings");
+		end(writer, "server");
+		end(writer, "servers");
+	}
+
+	private static void writeJvm(XMLEventWriter writer, JvmSizing.Jvm jvm)
+			throws XMLStreamException {
+		String heap = jvm.getHeapMb() + "m";
+		String permGen = jvm.getPermGenMb() + "m";
+		start(writer, "jvm", "name", "default");
+		start(writer, "heap", "size", heap, "max-size", heap);
+		end(writer, "heap");
+		start(writer, "permgen", "size", permGen, "max-size", permGen);
+		end(writer, "permgen");
+		start(writer, "stack", "size", jvm.getStackKb() + "k");
+		end(writer, "stack");
+		start(writer, "jvm-options");
+		for (String option : jvm.getExtraOptions()) {
+			start(writer, "option", "value", option);
+			end(writer, "option");
+		}
+		end(writer, "jvm-options");
+		end(writer, "jvm");
+	}
+
+	private static void writeDomainController(XMLEventWriter writer,
+			boolean isController, String controller, int controllerPort)
+			throws XMLStreamException {
+		start(writer, "domain-controller");
+		if (isController) {
+			start(writer, "local");
+			end(writer, "local");
+		} else {
+			start(writer, "remote", "host", Util.hostToIP(controller),
+					"port", String.valueOf(controllerPort), "security-realm",
+					JBossConstants.JBOSS_MGT_REALM);
+			end(writer, "remote");
+		}
+		end(writer, "domain-controller");
+	}
+
+	private static void writeServerIdentities(XMLEventWriter writer)
+			throws XMLStreamException {
+		start(writer, "server-identities");
+		start(writer, "secret", "value", new String(
+				Base64.encodeBase64(Util.SLAVE_PASSWORD.getBytes())));
+		end(writer, "secret");
+		end(writer, "server-identities");
+	}
+
+	/**
+	 * Write a start element without namespace, so that it falls into the
+	 * default namespace of the document.
+	 *
+	 * @param attributes
+	 *            Alternating attribute names and values
+	 */
+	private static void start(XMLEventWriter writer, String name,
+			String... attributes) throws XMLStreamException {
+		List<Attribute> list = new ArrayList<Attribute>();
+		for (int i = 0; i + 1 < attributes.length; i += 2) {
+			list.add(EVENT_FACTORY.createAttribute(attributes[i],
+					attributes[i + 1]));
+		}
+		writer.add(EVENT_FACTORY.createStartElement("", "", name,
+				list.iterator(), null));
+	}
+
+	private static void end(XMLEventWriter writer, String name)
+			throws XMLStreamException {
+		writer.add(EVENT_FACTORY.createEndElement("", "", name));
+	}
+
+	private static String getAttribute(StartElement start, String name) {
+		Attribute attribute = start.getAttributeByName(new QName(name));
+		return attribute == null ? null : attribute.getValue();
+	}
+
+	private static StartElement withAttribute(StartElement start, String name,
+			String value) {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+			Attribute attribute = (Attribute) it.next();
+			if (!name.equals(attribute.getName().getLocalPart())) {
+				attributes.add(attribute);
+			}
+		}
+		attributes.add(EVENT_FACTORY.createAttribute(name, value));
+		return EVENT_FACTORY.createStartElement(start.getName(),
+				attributes.iterator(), start.getNamespaces());
+	}
+
+	/**
+	 * Rewrites the content of one file.
+	 */
+	private interface Rewrite {
+		void apply(InputStream in, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Read a file once, write the result to a temporary file next to it and
+	 * rename that over the original.
+	 */
+	private static void rewrite(File file, Rewrite rewrite) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp",
+				file.getParentFile());
+		InputStream in = null;
+		OutputStream out = null;
+		boolean renamed = false;
+		try {
+			in = new FileInputStream(file);
+			out = new FileOutputStream(tmp);
+			rewrite.apply(in, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Problem replacing " + file + " with "
+						+ tmp);
+			}
+			renamed = true;
+		} finally {
+			Util.closeCloseable(in);
+			Util.closeCloseable(out);
+			if (!renamed && !tmp.delete()) {
+				LOG.info("Problem removing " + tmp);
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Startup pipeline of a JBoss domain.
+ *
+ * The first container handed to the pipeline becomes the domain controller
+ * and is launched on its own. Slaves are held back until the controller's
+ * native management port accepts connections, and are then launched in
+ * waves: a wave is released once every server of the previous wave, starting
+ * with the controller's own server, serves HTTP or the wave timeout passes.
+ * Once the initial waves are through, later containers are launched as soon
+ * as they arrive. The time each server and the whole domain take to start
+ * serving is recorded.
+ */
+public class DomainStartup {
+
+	private static final Logger LOG = Logger.getLogger(DomainStartup.class
+			.getName());
+
+	private static final long PROBE_INTERVAL_MS = 1000;
+	private static final int PROBE_TIMEOUT_MS = 500;
+
+	/**
+	 * Launches the container of one JBoss server.
+	 */
+	public interface ServerLauncher {
+
+		/**
+		 * @param container
+		 *            Container to launch
+		 * @param binding
+		 *            Ports of the server
+		 * @param controller
+		 *            Ports of the domain controller, the same as binding for
+		 *            the domain controller itself
+		 */
+		void launch(Container container, PortOffsetAllocator.Binding binding,
+				PortOffsetAllocator.Binding controller);
+	}
+
+	private final ServerLauncher launcher;
+	private final ScheduledExecutorService scheduler;
+	private final int waveSize;
+	private final long waveTimeoutMs;
+	private final int numServers;
+	private final long startTime = System.currentTimeMillis();
+
+	private PortOffsetAllocator.Binding controller;
+	private Pending controllerEntry;
+	private boolean controllerReady;
+	private long controllerLaunchTime;
+	private boolean staging = true;
+
+	private final List<Pending> pending = new LinkedList<Pending>();
+	private final List<Pending> wave = new ArrayList<Pending>();
+	private long waveStartTime;
+	private int waveNumber;
+
+	private final Map<ContainerId, Long> launchTimes = new HashMap<ContainerId, Long>();
+	private int numReady;
+	private long timeToServingMs = -1;
+
+	/**
+	 * @param launcher
+	 *            Launches released containers
+	 * @param scheduler
+	 *            Runs the readiness probes
+	 * @param numServers
+	 *            Number of servers the domain needs before it is serving
+	 * @param waveSize
+	 *            Maximum number of slaves released at once
+	 * @param waveTimeoutMs
+	 *            Time after which the next wave is released even if the
+	 *            current one is not ready
+	 */
+	public DomainStartup(ServerLauncher launcher,
+			ScheduledExecutorService scheduler, int numServers, int waveSize,
+			long waveTimeoutMs) {
+		this.launcher = launcher;
+		this.scheduler = scheduler;
+		this.numServers = numServers;
+		this.waveSize = waveSize;
+		this.waveTimeoutMs = waveTimeoutMs;
+	}
+
+	/**
+	 * Hand an allocated container to the pipeline.
+	 *
+	 * @param container
+	 *            Allocated container
+	 * @param binding
+	 *            Ports allocated to its server
+	 */
+	public void submit(Container container, PortOffsetAllocator.Binding binding) {
+		PortOffsetAllocator.Binding launchController;
+		synchronized (this) {
+			if (controller == null) {
+				controller = binding;
+				controllerEntry = new Pending(container, binding);
+				controllerReady = false;
+				staging = true;
+				controllerLaunchTime = System.currentTimeMillis();
+				LOG.info("Starting domain controller " + binding);
+				scheduleControllerProbe();
+			} else if (staging) {
+				pending.add(new Pending(container, binding));
+				return;
+			}
+			launchController = controller;
+			launchTimes.put(container.getId(), System.currentTimeMillis());
+		}
+		launcher.launch(container, binding, launchController);
+	}
+
+	/**
+	 * Take back a container that is still held back from launching, e.g.
+	 * because its server is retired before its wave is released.
+	 *
+	 * @param containerId
+	 *            Container to take back
+	 * @return true if the container was held back and will not be launched,
+	 *         false if it has been launched already or is not known
+	 */
+	public synchronized boolean withdraw(ContainerId containerId) {
+		for (Iterator<Pending> it = pending.iterator(); it.hasNext();) {
+			if (it.next().container.getId().equals(containerId)) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forget a container that has completed. If it was the domain controller
+	 * the next container becomes the new one.
+	 *
+	 * @param containerId
+	 *            Completed container
+	 */
+	public synchronized void completed(ContainerId containerId) {
+		launchTimes.remove(containerId);
+		for (Iterator<Pending> it = pending.iterator(); it.hasNext();) {
+			if (it.next().container.getId().equals(containerId)) {
+				it.remove();
+			}
+		}
+		for (Iterator<Pending> it = wave.iterator(); it.hasNext();) {
+			if (it.next().container.getId().equals(containerId)) {
+				it.remove();
+			}
+		}
+		if (controller != null
+				&& controller.getContainerId().equals(containerId)) {
+			LOG.warning("Domain controller " + controller
+					+ " is gone, the next container becomes controller");
+			controller = null;
+			controllerEntry = null;
+			controllerReady = false;
+		}
+	}
+
+	/**
+	 * @return Ports of the domain controller, or null before the first
+	 *         container has arrived
+	 */
+	public synchronized PortOffsetAllocator.Binding getController() {
+		return controller;
+	}
+
+	public synchronized boolean isControllerReady() {
+		return controllerReady;
+	}
+
+	/**
+	 * @return Time in ms from the start of the pipeline until the first
+	 *         numServers servers served HTTP, or -1 if not there yet
+	 */
+	public synchronized long getTimeToServingMs() {
+		return timeToServingMs;
+	}
+
+	private void scheduleControllerProbe() {
+		final PortOffsetAllocator.Binding probed = controller;
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				probeController(probed);
+			}
+		}, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void probeController(PortOffsetAllocator.Binding probed) {
+		boolean ready = EndpointProbe.isListening(probed.getHost(),
+				probed.getManagementNativePort(), PROBE_TIMEOUT_MS);
+		synchronized (this) {
+			if (probed != controller) {
+				return;
+			}
+			long elapsed = System.currentTimeMillis() - controllerLaunchTime;
+			if (!ready && elapsed < waveTimeoutMs) {
+				scheduleControllerProbe();
+				return;
+			}
+			if (ready) {
+				LOG.info("Domain controller " + probed + " ready after "
+						+ elapsed + " ms");
+				controllerReady = true;
+				wave.add(controllerEntry);
+			} else {
+				LOG.warning("Domain controller " + probed
+						+ " not ready after " + elapsed
+						+ " ms, releasing slaves anyway");
+			}
+		}
+		releaseNextWave();
+	}
+
+	private void releaseNextWave() {
+		List<Pending> released = new ArrayList<Pending>();
+		PortOffsetAllocator.Binding launchController;
+		synchronized (this) {
+			if (controller == null) {
+				return;
+			}
+			if (pending.isEmpty() && wave.isEmpty()) {
+				LOG.info("Domain startup waves complete after "
+						+ (System.currentTimeMillis() - startTime) + " ms");
+				staging = false;
+				return;
+			}
+			waveNumber++;
+			waveStartTime = System.currentTimeMillis();
+			while (!pending.isEmpty() && released.size() < waveSize) {
+				Pending next = pending.remove(0);
+				released.add(next);
+				wave.add(next);
+				launchTimes.put(next.container.getId(), waveStartTime);
+			}
+			launchController = controller;
+			LOG.info("Releasing startup wave " + waveNumber + " of "
+					+ released.size() + " slaves, " + pending.size()
+					+ " still pending");
+		}
+		for (Pending next : released) {
+			launcher.launch(next.container, next.binding, launchController);
+		}
+		scheduleWaveProbe();
+	}
+
+	private void scheduleWaveProbe() {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				probeWave();
+			}
+		}, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void probeWave() {
+		List<Pending> probed;
+		synchronized (this) {
+			probed = new ArrayList<Pending>(wave);
+		}
+		List<Pending> ready = new ArrayList<Pending>();
+		for (Pending server : probed) {
+			if (EndpointProbe.isListening(server.binding.getHost(),
+					server.binding.getHttpPort(), PROBE_TIMEOUT_MS)) {
+				ready.add(server);
+			}
+		}
+		synchronized (this) {
+			for (Pending server : ready) {
+				if (wave.remove(server)) {
+					serverReady(server.container.getId());
+				}
+			}
+			long elapsed = System.currentTimeMillis() - waveStartTime;
+			if (!wave.isEmpty() && elapsed < waveTimeoutMs) {
+				scheduleWaveProbe();
+				return;
+			}
+			if (!wave.isEmpty()) {
+				LOG.warning(wave.size() + " servers of startup wave "
+						+ waveNumber + " not ready after " + elapsed
+						+ " ms, releasing the next wave");
+				wave.clear();
+			} else {
+				LOG.info("Startup wave " + waveNumber + " ready after "
+						+ elapsed + " ms");
+			}
+		}
+		releaseNextWave();
+	}
+
+	private void serverReady(ContainerId containerId) {
+		Long launchTime = launchTimes.get(containerId);
+		long now = System.currentTimeMillis();
+		if (launchTime != null) {
+			LOG.info("JBoss server in " + containerId + " serving "
+					+ (now - launchTime) + " ms after launch");
+		}
+		numReady++;
+		if (numReady == numServers && timeToServingMs < 0) {
+			timeToServingMs = now - startTime;
+			LOG.info("Domain of " + numServers + " servers serving after "
+					+ timeToServingMs + " ms");
+		}
+	}
+
+	private static class Pending {
+
+		final Container container;
+		final PortOffsetAllocator.Binding binding;
+
+		Pending(Container container, PortOffsetAllocator.Binding binding) {
+			this.container = container;
+			this.binding = binding;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * Cheap checks of whether a JBoss endpoint is up.
+ */
+public class EndpointProbe {
+
+	private EndpointProbe() {
+	}
+
+	/**
+	 * @param host
+	 *            Host of the endpoint
+	 * @param port
+	 *            Port of the endpoint
+	 * @param timeoutMs
+	 *            Connect timeout
+	 * @return true if a TCP connection to the endpoint can be opened
+	 */
+	public static boolean isListening(String host, int port, int timeoutMs) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeoutMs);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Unlike {@link #isListening(String, int, int)} this also catches a hung
+	 * server, whose kernel still accepts connections that no thread reads.
+	 *
+	 * @param host
+	 *            Host of the endpoint
+	 * @param port
+	 *            Port of the endpoint
+	 * @param path
+	 *            Path to request
+	 * @param timeoutMs
+	 *            Connect and read timeout
+	 * @return true if the endpoint answers a GET with a status below 500.
+	 *         Authentication challenges count as answers.
+	 */
+	public static boolean respondsToHttp(String host, int port, String path,
+			int timeoutMs) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL("http", host, port, path)
+					.openConnection();
+			connection.setConnectTimeout(timeoutMs);
+			connection.setReadTimeout(timeoutMs);
+			connection.setInstanceFollowRedirects(false);
+			connection.setUseCaches(false);
+			return connection.getResponseCode() < 500;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Versioned list of the HTTP and AJP endpoints of the JBoss servers that are
+ * up and healthy, for load balancers to follow.
+ *
+ * Every endpoint added or removed bumps the version by one. The registry is
+ * served as JSON by the application master. A reader passing the version it
+ * has gets only the endpoints added and removed since, as long as the
+ * registry still remembers the changes, and the full list otherwise. The
+ * full list is also published to a file in the file system, written to a
+ * temporary file and renamed over the old one, so readers never see a
+ * partial file. Publishing waits a moment after a change so a burst of
+ * changes costs one write. The version continues from the published file
+ * of a previous attempt.
+ */
+public class EndpointRegistry {
+
+	private static final Logger LOG = Logger.getLogger(EndpointRegistry.class
+			.getName());
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final int MAX_CHANGES = 1000;
+	private static final long PUBLISH_DELAY_MS = 1000;
+
+	/**
+	 * A server's endpoints.
+	 */
+	public static class Endpoint {
+
+		private final ContainerId containerId;
+		private final String host;
+		private final int httpPort;
+		private final int ajpPort;
+
+		Endpoint(PortOffsetAllocator.Binding binding) {
+			containerId = binding.getContainerId();
+			host = binding.getHost();
+			httpPort = binding.getHttpPort();
+			ajpPort = binding.getAjpPort();
+		}
+
+		public ContainerId getContainerId() {
+			return containerId;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getHttpPort() {
+			return httpPort;
+		}
+
+		public int getAjpPort() {
+			return ajpPort;
+		}
+
+		void toJson(ObjectNode node) {
+			node.put("container", containerId.toString());
+			node.put("host", host);
+			node.put("http", httpPort);
+			node.put("ajp", ajpPort);
+		}
+
+		@Override
+		public String toString() {
+			return containerId + "@" + host + "[http=" + httpPort + ", ajp="
+					+ ajpPort + "]";
+		}
+	}
+
+	/**
+	 * An endpoint added or removed by a version.
+	 */
+	private static class Change {
+
+		final long version;
+		final boolean added;
+		final Endpoint endpoint;
+
+		Change(long version, boolean added, Endpoint endpoint) {
+			this.version = version;
+			this.added = added;
+			this.endpoint = endpoint;
+		}
+	}
+
+	private final FileContext fc;
+	private final Path file;
+	private final ScheduledExecutorService scheduler;
+
+	private final Map<ContainerId, Endpoint> endpoints = new LinkedHashMap<ContainerId, Endpoint>();
+	private final LinkedList<Change> changes = new LinkedList<Change>();
+	private long version;
+	private boolean publishScheduled;
+	private final Object publishLock = new Object();
+
+	/**
+	 * @param fc
+	 *            File system to publish to
+	 * @param file
+	 *            File the registry is published as
+	 * @param scheduler
+	 *            Runs the delayed publishing
+	 */
+	public EndpointRegistry(FileContext fc, Path file,
+			ScheduledExecutorService scheduler) {
+		this.fc = fc;
+		this.file = file;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Continue from the version a previous attempt published.
+	 */
+	public synchronized void open() {
+		try {
+			InputStream in = fc.open(file);
+			try {
+				version = MAPPER.readTree(in).path("version").getValueAsLong();
+			} finally {
+				Util.closeCloseable(in);
+			}
+			LOG.info("Endpoint registry continues from version " + version);
+		} catch (FileNotFoundException e) {
+			// first attempt
+		} catch (IOException e) {
+			LOG.info("Cannot read the published endpoint registry " + file
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Add the endpoints of a healthy server.
+	 *
+	 * @param binding
+	 *            Ports of the server's container
+	 */
+	public synchronized void add(PortOffsetAllocator.Binding binding) {
+		if (endpoints.containsKey(binding.getContainerId())) {
+			return;
+		}
+		Endpoint endpoint = new Endpoint(binding);
+		endpoints.put(endpoint.getContainerId(), endpoint);
+		changed(true, endpoint);
+	}
+
+	/**
+	 * Remove the endpoints of a server that is unhealthy, leaving or gone.
+	 *
+	 * @param containerId
+	 *            Container of the server
+	 */
+	public synchronized void remove(ContainerId containerId) {
+		Endpoint endpoint = endpoints.remove(containerId);
+		if (endpoint != null) {
+			changed(false, endpoint);
+		}
+	}
+
+	/**
+	 * Remove all endpoints.
+	 */
+	public synchronized void clear() {
+		for (Endpoint endpoint : endpoints.values()) {
+			changed(false, endpoint);
+		}
+		endpoints.clear();
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized int getNumEndpoints() {
+		return endpoints.size();
+	}
+
+	/**
+	 * @param since
+	 *            Version the reader has, or -1
+	 * @return The changes after that version if they are all remembered,
+	 *         otherwise the full registry
+	 */
+	public synchronized ObjectNode toJson(long since) {
+		ObjectNode node = MAPPER.createObjectNode();
+		node.put("version", version);
+		boolean remembered = since == version
+				|| (!changes.isEmpty() && changes.getFirst().version <= since + 1);
+		if (since < 0 || since > version || !remembered) {
+			ArrayNode list = node.putArray("endpoints");
+			for (Endpoint endpoint : endpoints.values()) {
+				endpoint.toJson(list.addObject());
+			}
+			return node;
+		}
+		node.put("since", since);
+		Map<ContainerId, Change> net = new LinkedHashMap<ContainerId, Change>();
+		for (Change change : changes) {
+			if (change.version > since) {
+				net.remove(change.endpoint.getContainerId());
+				net.put(change.endpoint.getContainerId(), change);
+			}
+		}
+		ArrayNode added = node.putArray("added");
+		ArrayNode removed = node.putArray("removed");
+		for (Change change : net.values()) {
+			if (change.added) {
+				change.endpoint.toJson(added.addObject());
+			} else {
+				removed.add(change.endpoint.getContainerId().toString());
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Write the full registry to the file system now.
+	 */
+	public void publish() {
+		synchronized (this) {
+			publishScheduled = false;
+		}
+		synchronized (publishLock) {
+			ObjectNode registry = toJson(-1);
+			Path tmp = new Path(file.getParent(), "." + file.getName() + ".tmp");
+			try {
+				OutputStream out = fc.create(tmp, EnumSet.of(CreateFlag.CREATE,
+						CreateFlag.OVERWRITE));
+				try {
+					MAPPER.writeValue(out, registry);
+				} finally {
+					Util.closeCloseable(out);
+				}
+				fc.rename(tmp, file, Options.Rename.OVERWRITE);
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Published endpoint registry version "
+							+ registry.path("version"));
+				}
+			} catch (IOException e) {
+				LOG.warning("Problem publishing the endpoint registry to "
+						+ file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void changed(boolean added, Endpoint endpoint) {
+		version++;
+		changes.add(new Change(version, added, endpoint));
+		if (changes.size() > MAX_CHANGES) {
+			changes.removeFirst();
+		}
+		LOG.info((added ? "Registered " : "Unregistered ") + endpoint
+				+ ", version=" + version);
+		if (!publishScheduled) {
+			publishScheduled = true;
+			try {
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						publish();
+					}
+				}, PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				publishScheduled = false;
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EndpointRegistry" + ", version=" + version + ", endpoints="
+				+ endpoints.size();
+	}
+}
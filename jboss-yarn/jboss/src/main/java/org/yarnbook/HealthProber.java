@@ -0,0 +1,287 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Periodically checks that the JBoss server of every running container still
+ * answers on its management and HTTP endpoints.
+ *
+ * YARN only sees the processes of a container, so a server that is hung,
+ * stuck deploying or otherwise not serving looks healthy to it. Each round
+ * the prober queues one probe per watched server on a small pool of its own
+ * threads, so slow servers cannot delay the AM's scheduler, and skips servers
+ * whose previous probe is still running. A server is reported unhealthy,
+ * once, after a number of consecutive failed probes. Failures within the
+ * grace period after a server started are not counted, to give it time to
+ * boot and deploy. The first successful probe of a server, and the first
+ * after a restart, reports it healthy.
+ */
+public class HealthProber {
+
+	private static final Logger LOG = Logger.getLogger(HealthProber.class
+			.getName());
+
+	/**
+	 * Told about servers that became healthy or failed too many probes.
+	 */
+	public interface Listener {
+		/**
+		 * @param binding
+		 *            Ports of the container whose server answered
+		 */
+		void healthy(PortOffsetAllocator.Binding binding);
+
+		/**
+		 * @param binding
+		 *            Ports of the unhealthy server's container
+		 * @param failures
+		 *            Consecutive failed probes
+		 */
+		void unhealthy(PortOffsetAllocator.Binding binding, int failures);
+	}
+
+	private final ScheduledExecutorService scheduler;
+	private final ThreadPoolExecutor executor;
+	private final Listener listener;
+	private final long intervalMs;
+	private final int timeoutMs;
+	private final int threshold;
+	private final long graceMs;
+
+	private final ConcurrentMap<ContainerId, Target> targets = new ConcurrentHashMap<ContainerId, Target>();
+	private ScheduledFuture<?> rounds;
+
+	private final AtomicLong numProbes = new AtomicLong();
+	private final AtomicLong numFailedProbes = new AtomicLong();
+	private final AtomicLong numSkippedProbes = new AtomicLong();
+	private final AtomicLong numUnhealthy = new AtomicLong();
+
+	/**
+	 * @param scheduler
+	 *            Runs the probe rounds
+	 * @param listener
+	 *            Told about unhealthy servers
+	 * @param numThreads
+	 *            Maximum number of probes running at once
+	 * @param intervalMs
+	 *            Time between probe rounds, 0 to never probe
+	 * @param timeoutMs
+	 *            Connect and read timeout of each probe
+	 * @param threshold
+	 *            Consecutive failed probes after which a server is unhealthy
+	 * @param graceMs
+	 *            Time after a server started before failures count
+	 */
+	public HealthProber(ScheduledExecutorService scheduler,
+			Listener listener, int numThreads, long intervalMs, int timeoutMs,
+			int threshold, long graceMs) {
+		if (numThreads < 1 || threshold < 1) {
+			throw new IllegalArgumentException(
+					"Invalid health probe settings, threads=" + numThreads
+							+ ", threshold=" + threshold + ", interval="
+							+ intervalMs);
+		}
+		this.scheduler = scheduler;
+		this.listener = listener;
+		this.intervalMs = intervalMs;
+		this.timeoutMs = timeoutMs;
+		this.threshold = threshold;
+		this.graceMs = graceMs;
+		executor = new ThreadPoolExecutor(numThreads, numThreads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ProberThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Start the probe rounds.
+	 */
+	public synchronized void start() {
+		if (rounds == null && intervalMs > 0) {
+			rounds = scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					probeAll();
+				}
+			}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop the probe rounds and abandon running probes.
+	 */
+	public synchronized void stop() {
+		if (rounds != null) {
+			rounds.cancel(false);
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Start probing the server of a container the NodeManager started.
+	 *
+	 * @param binding
+	 *            Ports of the container's JBoss server
+	 */
+	public void watch(PortOffsetAllocator.Binding binding) {
+		targets.putIfAbsent(binding.getContainerId(), new Target(binding));
+	}
+
+	/**
+	 * Stop probing the server of a container that is gone.
+	 *
+	 * @param containerId
+	 *            Container that completed or is being stopped
+	 */
+	public void unwatch(ContainerId containerId) {
+		targets.remove(containerId);
+	}
+
+	/**
+	 * Give a server restarted in place by its supervisor a new grace period.
+	 *
+	 * @param containerId
+	 *            Container whose server restarted
+	 */
+	public void restarted(ContainerId containerId) {
+		Target target = targets.get(containerId);
+		if (target != null) {
+			target.healthy = false;
+			target.failures = 0;
+			target.watchTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return Number of servers currently probed
+	 */
+	public int getNumWatched() {
+		return targets.size();
+	}
+
+	private void probeAll() {
+		for (final Target target : targets.values()) {
+			if (!target.inFlight.compareAndSet(false, true)) {
+				numSkippedProbes.incrementAndGet();
+				continue;
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							probe(target);
+						} finally {
+							target.inFlight.set(false);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				target.inFlight.set(false);
+				return;
+			}
+		}
+	}
+
+	private void probe(Target target) {
+		PortOffsetAllocator.Binding binding = target.binding;
+		numProbes.incrementAndGet();
+		boolean healthy = EndpointProbe.respondsToHttp(binding.getHost(),
+				binding.getManagementHttpPort(), "/management", timeoutMs)
+				&& EndpointProbe.respondsToHttp(binding.getHost(),
+						binding.getHttpPort(), "/", timeoutMs);
+		if (healthy) {
+			target.failures = 0;
+			if (!target.healthy) {
+				target.healthy = true;
+				listener.healthy(binding);
+			}
+			return;
+		}
+		numFailedProbes.incrementAndGet();
+		if (!target.healthy
+				&& System.currentTimeMillis() - target.watchTime < graceMs) {
+			return;
+		}
+		int failures = ++target.failures;
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Health probe of " + binding + " failed, failures="
+					+ failures);
+		}
+		if (failures >= threshold
+				&& targets.remove(binding.getContainerId(), target)) {
+			numUnhealthy.incrementAndGet();
+			LOG.warning("JBoss server " + binding + " failed " + failures
+					+ " health probes in a row");
+			listener.unhealthy(binding, failures);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HealthProber" + ", watched=" + getNumWatched() + ", probes="
+				+ numProbes.get() + ", failedProbes=" + numFailedProbes.get()
+				+ ", skippedProbes=" + numSkippedProbes.get()
+				+ ", unhealthy=" + numUnhealthy.get();
+	}
+
+	/**
+	 * Probe state of one server. Only one probe of a server runs at a time,
+	 * guarded by inFlight.
+	 */
+	private static class Target {
+
+		final PortOffsetAllocator.Binding binding;
+		volatile long watchTime = System.currentTimeMillis();
+		final AtomicBoolean inFlight = new AtomicBoolean();
+		volatile boolean healthy;
+		volatile int failures;
+
+		Target(PortOffsetAllocator.Binding binding) {
+			this.binding = binding;
+		}
+	}
+
+	private static class ProberThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "HealthProber #"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+
+/**
+ * Adapts the interval of the application master's heartbeats to the RM to
+ * what the application is doing.
+ *
+ * While containers are asked for, launching or being released, allocations
+ * and completions only arrive with heartbeats, so the fast interval is used.
+ * Once nothing has been going on for the settle time, the interval doubles
+ * at every check up to the slow interval, sparing the RM's scheduler for a
+ * domain that may run unchanged for days. Any completion, ask or resize
+ * snaps back to the fast interval. The heartbeat thread only picks up a new
+ * interval after its current sleep, so the slow interval also bounds how
+ * late the first heartbeat after a quiet period can be.
+ */
+public class HeartbeatScheduler {
+
+	private static final Logger LOG = Logger.getLogger(HeartbeatScheduler.class
+			.getName());
+
+	private static final long CHECK_INTERVAL_MS = 5000;
+	private static final long SETTLE_MS = 60000;
+
+	/**
+	 * Tells whether the application is waiting on the RM.
+	 */
+	public interface Activity {
+		/**
+		 * @return true while asks are outstanding or containers are
+		 *         launching or being released
+		 */
+		boolean isBusy();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private final AMRMClientAsync resourceManager;
+	private final ScheduledExecutorService scheduler;
+	private final Activity activity;
+	private final int fastMs;
+	private final int slowMs;
+
+	private int intervalMs;
+	private long lastActivity = System.currentTimeMillis();
+	private int numChanges;
+	private ScheduledFuture<?> checks;
+
+	/**
+	 * @param resourceManager
+	 *            Client whose heartbeat interval is adapted
+	 * @param scheduler
+	 *            Runs the checks
+	 * @param activity
+	 *            Tells whether the application is busy
+	 * @param fastMs
+	 *            Heartbeat interval while busy
+	 * @param slowMs
+	 *            Heartbeat interval at steady state
+	 */
+	@SuppressWarnings("rawtypes")
+	public HeartbeatScheduler(AMRMClientAsync resourceManager,
+			ScheduledExecutorService scheduler, Activity activity,
+			int fastMs, int slowMs) {
+		if (fastMs < 1 || slowMs < fastMs) {
+			throw new IllegalArgumentException(
+					"Invalid heartbeat intervals, fast=" + fastMs + ", slow="
+							+ slowMs);
+		}
+		this.resourceManager = resourceManager;
+		this.scheduler = scheduler;
+		this.activity = activity;
+		this.fastMs = fastMs;
+		this.slowMs = slowMs;
+		intervalMs = fastMs;
+	}
+
+	/**
+	 * Start with the fast interval and begin checking for steady state.
+	 */
+	public synchronized void start() {
+		apply(fastMs);
+		if (checks == null && slowMs > fastMs) {
+			checks = scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					check();
+				}
+			}, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (checks != null) {
+			checks.cancel(false);
+			checks = null;
+		}
+	}
+
+	/**
+	 * Something changed that the RM has to hear about or answer soon: switch
+	 * to the fast interval.
+	 */
+	public synchronized void activity() {
+		lastActivity = System.currentTimeMillis();
+		if (intervalMs != fastMs) {
+			apply(fastMs);
+		}
+	}
+
+	public synchronized int getIntervalMs() {
+		return intervalMs;
+	}
+
+	private synchronized void check() {
+		if (activity.isBusy()) {
+			activity();
+			return;
+		}
+		if (intervalMs < slowMs
+				&& System.currentTimeMillis() - lastActivity >= SETTLE_MS) {
+			apply(Math.min(slowMs, intervalMs * 2));
+		}
+	}
+
+	private void apply(int newIntervalMs) {
+		if (newIntervalMs != intervalMs) {
+			LOG.info("Heartbeat interval " + intervalMs + " ms -> "
+					+ newIntervalMs + " ms");
+			numChanges++;
+		}
+		intervalMs = newIntervalMs;
+		resourceManager.setHeartbeatInterval(newIntervalMs);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HeartbeatScheduler" + ", intervalMs=" + intervalMs
+				+ ", fastMs=" + fastMs + ", slowMs=" + slowMs + ", changes="
+				+ numChanges;
+	}
+}
@@ -22,15 +22,22 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.URI;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,8 +47,10 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.hadoop.yarn.api.ApplicationConstants.Environment;
 import org.apache.hadoop.yarn.api.ContainerManagementProtocol;
@@ -55,20 +64,24 @@ import org.apache.hadoop.yarn.api.records.ContainerState;
 import org.apache.hadoop.yarn.api.records.ContainerStatus;
 import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
 import org.apache.hadoop.yarn.api.records.LocalResource;
-import org.apache.hadoop.yarn.api.records.LocalResourceType;
-import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
 import org.apache.hadoop.yarn.api.records.NodeReport;
-import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.NodeState;
 import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
+import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.impl.NMClientAsyncImpl;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnException;
-import org.apache.hadoop.yarn.server.nodemanager.containermanager.localizer.ContainerLocalizer;
 import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 
 /**
  * JBoss AS 7.1 Application Master. Spin up domain mode (i.e. clustered)
@@ -80,6 +93,24 @@ public class JBossApplicationMaster {
 	private static final Logger LOG = Logger
 			.getLogger(JBossApplicationMaster.class.getName());
 
+	private static final long STAGING_TOUCH_INTERVAL_MS = 3600 * 1000L;
+	private static final long CONTAINER_STOP_TIMEOUT_MS = 30000;
+	private static final long STATUS_INTERVAL_MS = 5000;
+	private static final long BLACKLIST_EXPIRY_INTERVAL_MS = 60000;
+	private static final int MAX_BLACKLISTED_RELEASES = 3;
+	private static final String ENDPOINTS_FILE = "endpoints.json";
+
+	/**
+	 * Path the container supervisors report restarts to.
+	 */
+	private static final String RESTARTS_PATH = "/ws/v1/restarts";
+
+	/**
+	 * Options domain.conf and standalone.conf would otherwise give the JVMs
+	 * along with their default memory settings.
+	 */
+	private static final String DEFAULT_JAVA_OPTS = "-Djava.net.preferIPv4Stack=true -Dorg.jboss.resolver.warning=true";
+
 	private Configuration conf;
 
 	@SuppressWarnings("rawtypes")
@@ -95,26 +126,66 @@ public class JBossApplicationMaster {
 
 	private int numTotalContainers = 2;
 	private int containerMemory = 1024;
+	private int containerVirtualCores = 2;
 	private int requestPriority;
 
 	private String adminUser;
 	private String adminPassword;
 
-	private AtomicInteger numCompletedContainers = new AtomicInteger();
-	private AtomicInteger numAllocatedContainers = new AtomicInteger();
-	private AtomicInteger numFailedContainers = new AtomicInteger();
-	private AtomicInteger numRequestedContainers = new AtomicInteger();
+	private int maxServerFailures = 3;
+	private AllocationTracker allocation;
 
 	private Map<String, String> shellEnv = new HashMap<String, String>();
 
-	private String jbossHome;
 	private String appJar;
-	private String domainController;
+	private final PortOffsetAllocator portOffsets = new PortOffsetAllocator();
+
+	private LaunchMode mode = LaunchMode.DOMAIN;
+	private DomainStartup.ServerLauncher serverLauncher;
 
-	private volatile boolean done;
+	private int startupWaveSize = 10;
+	private long startupWaveTimeoutMs = 120000;
+	private DomainStartup startup;
+
+	private final CountDownLatch done = new CountDownLatch(1);
 	private volatile boolean success;
 
-	private List<Thread> launchThreads = new ArrayList<Thread>();
+	private int numLaunchThreads = 10;
+	private int heartbeatIntervalMs = 250;
+	private int maxHeartbeatIntervalMs = 15000;
+	private HeartbeatScheduler heartbeats;
+	private int artifactReplication = 10;
+	private LocalizationTimer localizationTimer;
+	private int maxFastFailures = 3;
+	private long fastFailureTimeMs = 60000;
+	private double blacklistThreshold = 3;
+	private long nodeFailureHalfLifeMs = 600000;
+	private NodeFailureTracker nodeFailures;
+	private int blacklistedReleases;
+	private final AtomicBoolean replenishScheduled = new AtomicBoolean();
+	private long healthIntervalMs = 10000;
+	private int healthTimeoutMs = 2000;
+	private int healthThreshold = 3;
+	private long healthGraceMs = 300000;
+	private int numHealthThreads = 4;
+	private HealthProber healthProber;
+	private MasterHttpServer httpServer;
+	private ManagementClient management;
+	private ControlSecret controlSecret;
+	private ServerDrainer drainer;
+	private EndpointRegistry endpoints;
+	private volatile LifecycleMetrics metrics;
+	private volatile ServiceStatus status;
+	private long drainTimeMs = 30000;
+	private long launchShutdownTimeoutMs = 30000;
+	private ContainerLauncher launcher;
+	private ContainerLaunchTemplate launchTemplate;
+	private ContainerConfigStager configStager;
+
+	private PlacementPlanner.Policy placementPolicy = PlacementPlanner.Policy.SPREAD;
+	private long localityTimeoutMs = 30000;
+	private PlacementPlanner planner;
+	private ScheduledExecutorService scheduler;
 
 	/**
 	 * @param args
@@ -203,10 +274,54 @@ public class JBossApplicationMaster {
 				"Password for initial administrator user");
 		opts.addOption("container_memory", true,
 				"Amount of memory in MB to be requested to run the shell command");
+		opts.addOption("container_vcores", true,
+				"No. of virtual cores to be requested for each JBoss AS container. Default 2");
 		opts.addOption("num_containers", true,
 				"No. of containers on which the shell command needs to be executed");
 		opts.addOption("jar", true, "JAR file containing the application");
 		opts.addOption("priority", true, "Application Priority. Default 0");
+		opts.addOption("max_server_failures", true,
+				"No. of container failures after which a server is not replaced any more. Default 3");
+		opts.addOption("mode", true,
+				"How JBoss AS runs in each container: domain or standalone. Default domain");
+		opts.addOption("placement", true,
+				"Container placement policy: spread, pack or any. Default spread");
+		opts.addOption("locality_timeout", true,
+				"Time in ms before located container asks fall back to any node. Default 30000");
+		opts.addOption("startup_wave_size", true,
+				"Max no. of slaves started at once after the domain controller. Default 10");
+		opts.addOption("startup_wave_timeout", true,
+				"Time in ms to wait for a startup wave to serve before starting the next one. Default 120000");
+		opts.addOption("artifact_replication", true,
+				"HDFS replication the JBoss distribution and application jar are raised to before launching many containers. Default 10");
+		opts.addOption("max_fast_failures", true,
+				"No. of quick JBoss failures in a row after which a container is given up instead of restarting JBoss in place, 0 to never restart in place. Default 3");
+		opts.addOption("fast_failure_time", true,
+				"Time in ms a JBoss run must last to not count as a quick failure. Default 60000");
+		opts.addOption("blacklist_threshold", true,
+				"Decayed no. of container failures at which a node is blacklisted, 0 to never blacklist. Default 3");
+		opts.addOption("node_failure_half_life", true,
+				"Time in ms in which the failures counted against a node halve. Default 600000");
+		opts.addOption("health_interval", true,
+				"Time in ms between health probes of the JBoss servers, 0 to disable. Default 10000");
+		opts.addOption("health_timeout", true,
+				"Time in ms a JBoss server has to answer a health probe. Default 2000");
+		opts.addOption("health_threshold", true,
+				"No. of failed health probes in a row after which a JBoss server is replaced. Default 3");
+		opts.addOption("health_grace", true,
+				"Time in ms after a container started before failed health probes count. Default 300000");
+		opts.addOption("health_threads", true,
+				"Max no. of health probes running concurrently. Default 4");
+		opts.addOption("drain_time", true,
+				"Time in ms servers get to finish their requests when they are retired or the application stops, before their containers are stopped. Default 30000");
+		opts.addOption("heartbeat_interval", true,
+				"Interval in ms between heartbeats to the RM while containers are asked for or launching. Default 250");
+		opts.addOption("max_heartbeat_interval", true,
+				"Interval in ms between heartbeats to the RM once the domain is steady. Default 15000");
+		opts.addOption("launch_threads", true,
+				"Max no. of containers launched concurrently. Default 10");
+		opts.addOption("launch_timeout", true,
+				"Time in ms to wait for pending container launches on shutdown. Default 30000");
 		opts.addOption("debug", false, "Dump out debug information");
 
 		opts.addOption("help", false, "Print usage");
@@ -264,6 +379,8 @@ public class JBossApplicationMaster {
 					+ " not set in the environment");
 		}
 
+		appMasterHostname = envs.get(Environment.NM_HOST.name());
+
 		LOG.info("Application master for app" + ", appId="
 				+ appAttemptID.getApplicationId().getId()
 				+ ", clustertimestamp="
@@ -272,6 +389,8 @@ public class JBossApplicationMaster {
 
 		containerMemory = Integer.parseInt(cliParser.getOptionValue(
 				"container_memory", "1024"));
+		containerVirtualCores = Integer.parseInt(cliParser.getOptionValue(
+				"container_vcores", "2"));
 		numTotalContainers = Integer.parseInt(cliParser.getOptionValue(
 				"num_containers", "1"));
 		adminUser = cliParser.getOptionValue("admin_user", "yarn");
@@ -283,6 +402,62 @@ public class JBossApplicationMaster {
 		}
 		requestPriority = Integer.parseInt(cliParser.getOptionValue("priority",
 				"0"));
+		maxServerFailures = Integer.parseInt(cliParser.getOptionValue(
+				"max_server_failures", "3"));
+		mode = LaunchMode.parse(cliParser.getOptionValue("mode", "domain"));
+		placementPolicy = PlacementPlanner.Policy.parse(cliParser
+				.getOptionValue("placement", "spread"));
+		localityTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"locality_timeout", "30000"));
+		startupWaveSize = Integer.parseInt(cliParser.getOptionValue(
+				"startup_wave_size", "10"));
+		startupWaveTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"startup_wave_timeout", "120000"));
+		if (startupWaveSize < 1) {
+			throw new IllegalArgumentException(
+					"Cannot run JBoss Application Master with empty startup waves");
+		}
+		artifactReplication = Integer.parseInt(cliParser.getOptionValue(
+				"artifact_replication", "10"));
+		maxFastFailures = Integer.parseInt(cliParser.getOptionValue(
+				"max_fast_failures", "3"));
+		fastFailureTimeMs = Long.parseLong(cliParser.getOptionValue(
+				"fast_failure_time", "60000"));
+		blacklistThreshold = Double.parseDouble(cliParser.getOptionValue(
+				"blacklist_threshold", "3"));
+		nodeFailureHalfLifeMs = Long.parseLong(cliParser.getOptionValue(
+				"node_failure_half_life", "600000"));
+		healthIntervalMs = Long.parseLong(cliParser.getOptionValue(
+				"health_interval", "10000"));
+		healthTimeoutMs = Integer.parseInt(cliParser.getOptionValue(
+				"health_timeout", "2000"));
+		healthThreshold = Integer.parseInt(cliParser.getOptionValue(
+				"health_threshold", "3"));
+		healthGraceMs = Long.parseLong(cliParser.getOptionValue(
+				"health_grace", "300000"));
+		numHealthThreads = Integer.parseInt(cliParser.getOptionValue(
+				"health_threads", "4"));
+		drainTimeMs = Long.parseLong(cliParser.getOptionValue("drain_time",
+				"30000"));
+		numLaunchThreads = Integer.parseInt(cliParser.getOptionValue(
+				"launch_threads", "10"));
+		heartbeatIntervalMs = Integer.parseInt(cliParser.getOptionValue(
+				"heartbeat_interval", "250"));
+		maxHeartbeatIntervalMs = Integer.parseInt(cliParser.getOptionValue(
+				"max_heartbeat_interval", "15000"));
+		if (heartbeatIntervalMs < 1
+				|| maxHeartbeatIntervalMs < heartbeatIntervalMs) {
+			throw new IllegalArgumentException(
+					"Invalid heartbeat intervals, specified interval="
+							+ heartbeatIntervalMs + ", max="
+							+ maxHeartbeatIntervalMs);
+		}
+		launchShutdownTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"launch_timeout", "30000"));
+		if (numLaunchThreads < 1) {
+			throw new IllegalArgumentException(
+					"Cannot run JBoss Application Master with no launch threads");
+		}
 
 		return true;
 	}
@@ -308,11 +483,43 @@ public class JBossApplicationMaster {
 		LOG.info("Starting JBossApplicationMaster");
 
 		AMRMClientAsync.CallbackHandler allocListener = new RMCallbackHandler();
-		resourceManager = AMRMClientAsync.createAMRMClientAsync(1000,
-				allocListener);
+		resourceManager = AMRMClientAsync.createAMRMClientAsync(
+				heartbeatIntervalMs, allocListener);
 		resourceManager.init(conf);
 		resourceManager.start();
 
+		launcher = new ContainerLauncher(numLaunchThreads);
+		launchTemplate = new ContainerLaunchTemplate(conf, appJar, shellEnv);
+		String appId = appAttemptID.getApplicationId().toString();
+		Path appDir = new Path(FileSystem.get(conf).getHomeDirectory(),
+				JBossConstants.JBOSS_YARN + File.separator + appId);
+		configStager = new ContainerConfigStager(mode, conf, appDir, appId,
+				adminUser, adminPassword);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		endpoints = new EndpointRegistry(FileContext.getFileContext(conf),
+				new Path(appDir, ENDPOINTS_FILE), scheduler);
+		endpoints.open();
+
+		controlSecret = ControlSecret.create();
+		controlSecret.publish(FileSystem.get(conf), new Path(appDir,
+				JBossConstants.CONTROL_SECRET_FILE));
+
+		httpServer = new MasterHttpServer(appMasterHostname);
+		httpServer.addHandler(RESTARTS_PATH, new RestartReportHandler());
+		httpServer.addHandler(JBossConstants.AM_RESIZE_PATH,
+				new ResizeHandler());
+		httpServer.addHandler(JBossConstants.AM_ENDPOINTS_PATH,
+				new EndpointsHandler());
+		httpServer.addHandler(JBossConstants.AM_STATUS_PATH,
+				new StatusHandler());
+		httpServer.addHandler("/", new MetricsHandler());
+		httpServer.start();
+		appMasterTrackingUrl = httpServer.getUrl() + "/";
+		management = new ManagementClient(portOffsets, adminUser, adminPassword,
+				healthTimeoutMs);
+		drainer = new ServerDrainer(management, mode, numHealthThreads);
+
 		containerListener = new NMCallbackHandler();
 		nmClientAsync = new NMClientAsyncImpl(containerListener);
 		nmClientAsync.init(conf);
@@ -335,17 +542,112 @@ public class JBossApplicationMaster {
 			containerMemory = maxMem;
 		}
 
-		for (int i = 0; i < numTotalContainers; ++i) {
-			ContainerRequest containerAsk = setupContainerAskForRM();
-			resourceManager.addContainerRequest(containerAsk);
+		int maxVirtualCores = response.getMaximumResourceCapability()
+				.getVirtualCores();
+		LOG.info("Max vcore capability of resources in this cluster "
+				+ maxVirtualCores);
+		if (containerVirtualCores > maxVirtualCores) {
+			LOG.info("Container vcores specified above max threshold of cluster."
+					+ " Using max value."
+					+ ", specified="
+					+ containerVirtualCores + ", max=" + maxVirtualCores);
+			containerVirtualCores = maxVirtualCores;
 		}
-		numRequestedContainers.set(numTotalContainers);
 
-		while (!done) {
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException ex) {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				touchStagedJar();
+			}
+		}, 0, STAGING_TOUCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		nodeFailures = new NodeFailureTracker(blacklistThreshold,
+				nodeFailureHalfLifeMs);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireBlacklist();
+			}
+		}, BLACKLIST_EXPIRY_INTERVAL_MS, BLACKLIST_EXPIRY_INTERVAL_MS,
+				TimeUnit.MILLISECONDS);
+		planner = new PlacementPlanner(placementPolicy,
+				setupContainerCapability(), requestPriority);
+		if (placementPolicy != PlacementPlanner.Policy.ANY) {
+			planner.updateNodes(getRunningNodes());
+		}
+
+		allocation = new AllocationTracker(numTotalContainers,
+				maxServerFailures);
+		metrics = new LifecycleMetrics(allocation);
+		// Stay well within the time after which the RM gives up on the AM
+		int amExpiryMs = conf.getInt(YarnConfiguration.RM_AM_EXPIRY_INTERVAL_MS,
+				YarnConfiguration.DEFAULT_RM_AM_EXPIRY_INTERVAL_MS);
+		heartbeats = new HeartbeatScheduler(resourceManager, scheduler,
+				new HeartbeatScheduler.Activity() {
+					public boolean isBusy() {
+						return allocation
+								.getCount(AllocationTracker.State.REQUESTED)
+								+ allocation
+										.getCount(AllocationTracker.State.ALLOCATED)
+								+ allocation
+										.getCount(AllocationTracker.State.LAUNCHING)
+								+ allocation
+										.getCount(AllocationTracker.State.RETIRING) > 0;
+					}
+				}, heartbeatIntervalMs, Math.max(heartbeatIntervalMs,
+						Math.min(maxHeartbeatIntervalMs, amExpiryMs / 3)));
+		heartbeats.start();
+		try {
+			DefaultMetricsSystem.initialize("JBossApplicationMaster");
+			DefaultMetricsSystem.instance().register(LifecycleMetrics.RECORD,
+					"JBoss server lifecycle", metrics);
+		} catch (RuntimeException e) {
+			LOG.log(Level.WARNING, "Problem registering the metrics source", e);
+		}
+		serverLauncher = new DomainStartup.ServerLauncher() {
+			public void launch(Container container,
+					PortOffsetAllocator.Binding binding,
+					PortOffsetAllocator.Binding controller) {
+				JvmSizing sizing = new JvmSizing(container.getResource(),
+						mode, maxFastFailures > 0);
+				LOG.info("JVM sizing for " + container.getId() + ": "
+						+ sizing);
+				allocation.launching(container.getId(), sizing);
+				nodeFailures.launched(container.getNodeId().getHost());
+				launcher.launch(new LaunchContainerRunnable(container,
+						binding, controller, sizing, containerListener));
 			}
+		};
+		startup = new DomainStartup(serverLauncher, scheduler,
+				numTotalContainers, startupWaveSize, startupWaveTimeoutMs);
+		localizationTimer = new LocalizationTimer(scheduler);
+		healthProber = new HealthProber(scheduler,
+				new HealthProber.Listener() {
+					public void healthy(PortOffsetAllocator.Binding binding) {
+						metrics.ready(binding.getContainerId());
+						endpoints.add(binding);
+					}
+
+					public void unhealthy(PortOffsetAllocator.Binding binding,
+							int failures) {
+						endpoints.remove(binding.getContainerId());
+						stopUnhealthyContainer(binding.getContainerId());
+					}
+				}, numHealthThreads, healthIntervalMs, healthTimeoutMs,
+				healthThreshold, healthGraceMs);
+		healthProber.start();
+		raiseArtifactReplication();
+		requestContainers(allocation.reconcile());
+		status = new ServiceStatus(allocation, metrics, endpoints);
+		status.setState("running");
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				status.refresh();
+			}
+		}, STATUS_INTERVAL_MS, STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			LOG.info("Interrupted while waiting for the application to complete");
+			Thread.currentThread().interrupt();
 		}
 		finish();
 
@@ -353,32 +655,42 @@ public class JBossApplicationMaster {
 	}
 
 	private void finish() {
-		for (Thread launchThread : launchThreads) {
-			try {
-				launchThread.join(10000);
-			} catch (InterruptedException e) {
-				LOG.info("Exception thrown in thread join: " + e.getMessage());
-				e.printStackTrace();
-			}
+		if (status != null) {
+			status.setState("finishing");
 		}
+		launcher.shutdown(launchShutdownTimeoutMs);
+		LOG.info("Container launches finished. " + launcher);
+		LOG.info("Container start times. " + localizationTimer);
+		LOG.info("Lifecycle metrics. " + metrics);
+		LOG.info("Node failures. " + nodeFailures);
+
+		healthProber.stop();
+		LOG.info("Health probes finished. " + healthProber);
+		heartbeats.stop();
+		LOG.info("Heartbeats. " + heartbeats);
+		drainServers();
+		drainer.shutdown();
+		scheduler.shutdownNow();
+		endpoints.publish();
+		LOG.info("Endpoints published. " + endpoints);
+		DefaultMetricsSystem.shutdown();
 
 		LOG.info("Application completed. Stopping running containers");
 		nmClientAsync.stop();
 
+		configStager.cleanup();
+		httpServer.stop();
+
 		LOG.info("Application completed. Signalling finish to RM");
 
 		FinalApplicationStatus appStatus;
 		String appMessage = null;
 		success = true;
-		if (numFailedContainers.get() == 0
-				&& numCompletedContainers.get() == numTotalContainers) {
+		if (allocation.isSucceeded()) {
 			appStatus = FinalApplicationStatus.SUCCEEDED;
 		} else {
 			appStatus = FinalApplicationStatus.FAILED;
-			appMessage = "Diagnostics." + ", total=" + numTotalContainers
-					+ ", completed=" + numCompletedContainers.get()
-					+ ", allocated=" + numAllocatedContainers.get()
-					+ ", failed=" + numFailedContainers.get();
+			appMessage = "Diagnostics. " + allocation;
 			success = false;
 		}
 		try {
@@ -390,16 +702,30 @@ public class JBossApplicationMaster {
 			LOG.log(Level.SEVERE, "Failed to unregister application", e);
 		}
 
-		done = true;
 		resourceManager.stop();
 	}
 
+	/**
+	 * Wake up the main thread so that it finishes the application. Safe to
+	 * call from any callback thread, any number of times.
+	 * 
+	 * @param reason
+	 *            Why the application is finishing, for the log
+	 */
+	private void signalDone(String reason) {
+		if (done.getCount() > 0) {
+			LOG.info("Application master finishing: " + reason);
+		}
+		done.countDown();
+	}
+
 	private class RMCallbackHandler implements AMRMClientAsync.CallbackHandler {
 		@SuppressWarnings("unchecked")
 		public void onContainersCompleted(
 				List<ContainerStatus> completedContainers) {
 			LOG.info("Got response from RM for container ask, completedCnt="
 					+ completedContainers.size());
+			heartbeats.activity();
 			for (ContainerStatus containerStatus : completedContainers) {
 				LOG.info("Got container status for containerID="
 						+ containerStatus.getContainerId() + ", state="
@@ -407,44 +733,58 @@ public class JBossApplicationMaster {
 						+ containerStatus.getExitStatus() + ", diagnostics="
 						+ containerStatus.getDiagnostics());
 
+				String diagnostics = containerStatus.getDiagnostics();
+				if (diagnostics != null
+						&& diagnostics.contains("changed on src filesystem")) {
+					launchTemplate.invalidate();
+				}
+
 				assert (containerStatus.getState() == ContainerState.COMPLETE);
 
-				int exitStatus = containerStatus.getExitStatus();
-				if (0 != exitStatus) {
-					if (ContainerExitStatus.ABORTED != exitStatus) {
-						numCompletedContainers.incrementAndGet();
-						numFailedContainers.incrementAndGet();
-					} else {
-						numAllocatedContainers.decrementAndGet();
-						numRequestedContainers.decrementAndGet();
-					}
-				} else {
-					numCompletedContainers.incrementAndGet();
-					LOG.info("Container completed successfully."
+				String host = planner.released(containerStatus
+						.getContainerId());
+				localizationTimer.completed(containerStatus.getContainerId());
+				healthProber.unwatch(containerStatus.getContainerId());
+				endpoints.remove(containerStatus.getContainerId());
+				drainer.stopped(containerStatus.getContainerId());
+				portOffsets.release(containerStatus.getContainerId());
+				startup.completed(containerStatus.getContainerId());
+
+				AllocationTracker.Server server = allocation
+						.completed(containerStatus);
+				if (server != null) {
+					LOG.info("Container completed for " + server
 							+ ", containerId="
 							+ containerStatus.getContainerId());
+					int exitStatus = containerStatus.getExitStatus();
+					metrics.completed(containerStatus.getContainerId(),
+							exitStatus != 0
+									&& exitStatus != ContainerExitStatus.ABORTED);
+					if (host != null && exitStatus != 0
+							&& exitStatus != ContainerExitStatus.ABORTED) {
+						nodeFailed(host);
+					}
+					if (diagnostics != null
+							&& diagnostics.contains("beyond physical memory")) {
+						LOG.warning("Container "
+								+ containerStatus.getContainerId()
+								+ " exceeded its memory with JVM sizing "
+								+ server.getJvmSizing());
+					}
 				}
 			}
 
-			int askCount = numTotalContainers - numRequestedContainers.get();
-			numRequestedContainers.addAndGet(askCount);
-
-			if (askCount > 0) {
-				for (int i = 0; i < askCount; ++i) {
-					ContainerRequest containerAsk = setupContainerAskForRM();
-					resourceManager.addContainerRequest(containerAsk);
-				}
-			}
+			replenishContainers();
 
-			if (numCompletedContainers.get() == numTotalContainers) {
-				done = true;
+			if (allocation.isFinished()) {
+				signalDone("all servers completed");
 			}
 		}
 
+		@SuppressWarnings("unchecked")
 		public void onContainersAllocated(List<Container> allocatedContainers) {
 			LOG.info("Got response from RM for container ask, allocatedCnt="
 					+ allocatedContainers.size());
-			numAllocatedContainers.addAndGet(allocatedContainers.size());
 			for (Container allocatedContainer : allocatedContainers) {
 				LOG.info("Launching shell command on a new container."
 						+ ", containerId=" + allocatedContainer.getId()
@@ -456,30 +796,94 @@ public class JBossApplicationMaster {
 						+ ", containerResourceMemory"
 						+ allocatedContainer.getResource().getMemory());
 
-				LaunchContainerRunnable runnableLaunchContainer = new LaunchContainerRunnable(
-						allocatedContainer, containerListener);
-				Thread launchThread = new Thread(runnableLaunchContainer);
+				ContainerRequest matchedAsk = planner
+						.allocated(allocatedContainer);
+				if (matchedAsk != null) {
+					resourceManager.removeContainerRequest(matchedAsk);
+				}
 
-				launchThreads.add(launchThread);
-				launchThread.start();
+				if (nodeFailures.isBlacklisted(allocatedContainer.getNodeId()
+						.getHost())) {
+					if (matchedAsk == null
+							|| blacklistedReleases < MAX_BLACKLISTED_RELEASES) {
+						LOG.info("Releasing container "
+								+ allocatedContainer.getId()
+								+ " on blacklisted node "
+								+ allocatedContainer.getNodeId().getHost());
+						resourceManager
+								.releaseAssignedContainer(allocatedContainer
+										.getId());
+						planner.released(allocatedContainer.getId());
+						if (matchedAsk != null) {
+							blacklistedReleases++;
+							reaskLater();
+						}
+						continue;
+					}
+					LOG.warning("Keeping container "
+							+ allocatedContainer.getId()
+							+ " on blacklisted node "
+							+ allocatedContainer.getNodeId().getHost()
+							+ " after " + blacklistedReleases
+							+ " re-asks in a row landed on blacklisted nodes");
+				}
+				blacklistedReleases = 0;
+
+				AllocationTracker.Server server = allocation
+						.allocated(allocatedContainer);
+				if (server == null) {
+					LOG.info("Releasing surplus container "
+							+ allocatedContainer.getId());
+					resourceManager.releaseAssignedContainer(allocatedContainer
+							.getId());
+					planner.released(allocatedContainer.getId());
+					continue;
+				}
+
+				metrics.allocated(allocatedContainer.getId());
+
+				PortOffsetAllocator.Binding binding;
+				try {
+					binding = portOffsets.allocate(allocatedContainer.getId(),
+							allocatedContainer.getNodeId().getHost());
+				} catch (IllegalStateException e) {
+					LOG.log(Level.SEVERE, "Problem allocating JBoss ports", e);
+					containerLaunchFailed(allocatedContainer.getId());
+					continue;
+				}
+				if (mode == LaunchMode.DOMAIN) {
+					startup.submit(allocatedContainer, binding);
+				} else {
+					serverLauncher.launch(allocatedContainer, binding, binding);
+				}
 			}
+			LOG.info("Queued container launches. " + launcher);
 		}
 
 		public void onShutdownRequest() {
-			done = true;
+			signalDone("shutdown requested by the RM");
 		}
 
 		public void onNodesUpdated(List<NodeReport> updatedNodes) {
+			planner.updateNodes(updatedNodes);
 		}
 
+		/**
+		 * The domain is a service that does not complete, so progress is the
+		 * share of the wanted servers that are running.
+		 */
 		public float getProgress() {
-			float progress = (float) numCompletedContainers.get()
-					/ numTotalContainers;
-			return progress;
+			int target = allocation.getTargetCount();
+			if (target == 0) {
+				return 1;
+			}
+			return Math.min(1, (float) allocation
+					.getCount(AllocationTracker.State.RUNNING) / target);
 		}
 
 		public void onError(Throwable e) {
-			done = true;
+			LOG.log(Level.SEVERE, "Error in the RM callback handler", e);
+			signalDone("RM callback error");
 			resourceManager.stop();
 		}
 	}
@@ -491,10 +895,6 @@ public class JBossApplicationMaster {
 		public void addContainer(ContainerId containerId, Container container) {
 			containers.putIfAbsent(containerId, container);
 			LOG.info("Callback container id : " + containerId.toString());
-
-			if (containers.size() == 1) {
-				domainController = container.getNodeId().getHost();
-			}
 		}
 
 		public void onContainerStopped(ContainerId containerId) {
@@ -502,6 +902,9 @@ public class JBossApplicationMaster {
 				LOG.finest("Succeeded to stop Container " + containerId);
 			}
 			containers.remove(containerId);
+			endpoints.remove(containerId);
+			portOffsets.release(containerId);
+			drainer.stopped(containerId);
 		}
 
 		public void onContainerStatusReceived(ContainerId containerId,
@@ -512,11 +915,30 @@ public class JBossApplicationMaster {
 			}
 		}
 
+		public Container getContainer(ContainerId containerId) {
+			return containers.get(containerId);
+		}
+
+		public List<Container> getContainers() {
+			return new ArrayList<Container>(containers.values());
+		}
+
 		public void onContainerStarted(ContainerId containerId,
 				Map<String, ByteBuffer> allServiceResponse) {
 			if (LOG.isLoggable(Level.FINEST)) {
 				LOG.finest("Succeeded to start Container " + containerId);
 			}
+			allocation.started(containerId);
+			metrics.started(containerId);
+			PortOffsetAllocator.Binding binding = portOffsets
+					.getBinding(containerId);
+			if (binding != null) {
+				localizationTimer.started(binding);
+				healthProber.watch(binding);
+				if (healthIntervalMs <= 0) {
+					endpoints.add(binding);
+				}
+			}
 			Container container = containers.get(containerId);
 			if (container != null) {
 				nmClientAsync.getContainerStatusAsync(containerId,
@@ -525,8 +947,12 @@ public class JBossApplicationMaster {
 		}
 
 		public void onStartContainerError(ContainerId containerId, Throwable t) {
-			LOG.log(Level.SEVERE, "Failed to start Container " + containerId);
-			containers.remove(containerId);
+			LOG.log(Level.SEVERE, "Failed to start Container " + containerId, t);
+			Container container = containers.remove(containerId);
+			if (container != null) {
+				nodeFailed(container.getNodeId().getHost());
+			}
+			containerLaunchFailed(containerId);
 		}
 
 		public void onGetContainerStatusError(ContainerId containerId,
@@ -538,6 +964,9 @@ public class JBossApplicationMaster {
 		public void onStopContainerError(ContainerId containerId, Throwable t) {
 			LOG.log(Level.SEVERE, "Failed to stop Container " + containerId);
 			containers.remove(containerId);
+			endpoints.remove(containerId);
+			portOffsets.release(containerId);
+			drainer.stopped(containerId);
 		}
 
 		public int getContainerCount() {
@@ -553,17 +982,34 @@ public class JBossApplicationMaster {
 
 		Container container;
 
+		PortOffsetAllocator.Binding binding;
+
+		PortOffsetAllocator.Binding controller;
+
+		JvmSizing sizing;
+
 		NMCallbackHandler containerListener;
 
 		/**
 		 * @param lcontainer
 		 *            Allocated container
+		 * @param binding
+		 *            Ports of the JBoss server in the container
+		 * @param controller
+		 *            Ports of the domain controller
+		 * @param sizing
+		 *            Memory settings of the JVMs in the container
 		 * @param containerListener
 		 *            Callback handler of the container
 		 */
 		public LaunchContainerRunnable(Container lcontainer,
+				PortOffsetAllocator.Binding binding,
+				PortOffsetAllocator.Binding controller, JvmSizing sizing,
 				NMCallbackHandler containerListener) {
 			this.container = lcontainer;
+			this.binding = binding;
+			this.controller = controller;
+			this.sizing = sizing;
 			this.containerListener = containerListener;
 		}
 
@@ -577,139 +1023,720 @@ public class JBossApplicationMaster {
 
 			LOG.info("Setting up container launch container for containerid="
 					+ container.getId());
-			ContainerLaunchContext ctx = Records
-					.newRecord(ContainerLaunchContext.class);
-
-			ctx.setEnvironment(shellEnv);
-
-			Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
-
-			String applicationId = container.getId().getApplicationAttemptId()
-					.getApplicationId().toString();
-			try {
-				FileSystem fs = FileSystem.get(conf);
-
-				LocalResource jbossDist = Records
-						.newRecord(LocalResource.class);
-				jbossDist.setType(LocalResourceType.ARCHIVE);
-				jbossDist.setVisibility(LocalResourceVisibility.APPLICATION);
-
-				Path jbossDistPath = new Path(new URI(
-						JBossConstants.JBOSS_DIST_PATH));
-				jbossDist.setResource(ConverterUtils
-						.getYarnUrlFromPath(jbossDistPath));
-
-				jbossDist.setTimestamp(fs.getFileStatus(jbossDistPath)
-						.getModificationTime());
-				jbossDist.setSize(fs.getFileStatus(jbossDistPath).getLen());
-				localResources.put(JBossConstants.JBOSS_SYMLINK, jbossDist);
-
-				LocalResource jbossConf = Records
-						.newRecord(LocalResource.class);
-				jbossConf.setType(LocalResourceType.FILE);
-				jbossConf.setVisibility(LocalResourceVisibility.APPLICATION);
-
-				Path jbossConfPath = new Path(new URI(appJar));
-				jbossConf.setResource(ConverterUtils
-						.getYarnUrlFromPath(jbossConfPath));
-
-				jbossConf.setTimestamp(fs.getFileStatus(jbossConfPath)
-						.getModificationTime());
-				jbossConf.setSize(fs.getFileStatus(jbossConfPath).getLen());
-				localResources.put(JBossConstants.JBOSS_ON_YARN_APP, jbossConf);
-
-			} catch (Exception e) {
-				LOG.log(Level.SEVERE, "Problem setting local resources", e);
-				numCompletedContainers.incrementAndGet();
-				numFailedContainers.incrementAndGet();
-				return;
-			}
-
-			ctx.setLocalResources(localResources);
 
 			List<String> commands = new ArrayList<String>();
 
 			String host = container.getNodeId().getHost();
 
-			String containerHome = conf.get("yarn.nodemanager.local-dirs")
-					+ File.separator + ContainerLocalizer.USERCACHE
-					+ File.separator
-					+ System.getenv().get(Environment.USER.toString())
-					+ File.separator + ContainerLocalizer.APPCACHE
-					+ File.separator + applicationId + File.separator
-					+ containerId;
-			jbossHome = containerHome + File.separator
+			// The localized distribution is shared and read-only. JBoss runs
+			// from a home of symlinks to it, with a writable copy of the base
+			// directory of the mode.
+			String jbossDist = Environment.PWD.$() + File.separator
 					+ JBossConstants.JBOSS_SYMLINK + File.separator
 					+ JBossConstants.JBOSS_VERSION;
-
-			String jbossPermissionsCommand = String.format("chmod -R 777 %s",
-					jbossHome);
-
-			int portOffset = 0;
-			int containerCount = containerListener.getContainerCount();
-			if (containerCount > 1) {
-				portOffset = containerCount * 150;
+			String jbossHome = Environment.PWD.$() + File.separator
+					+ JBossConstants.JBOSS_OVERLAY;
+			String baseDir = mode == LaunchMode.STANDALONE ? "standalone"
+					: "domain";
+
+			String jbossOverlayCommand = String.format(
+					"mkdir %s && ln -s %s%s* %s && rm %s%s%s && cp -R %s%s%s %s && chmod -R u+w %s%s%s",
+					jbossHome, jbossDist, File.separator, jbossHome,
+					jbossHome, File.separator, baseDir, jbossDist,
+					File.separator, baseDir, jbossHome, jbossHome,
+					File.separator, baseDir);
+
+			Map<String, LocalResource> configResources;
+			try {
+				configResources = configStager.stage(container.getId(),
+						binding, controller, sizing);
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Problem staging JBoss configuration", e);
+				containerLaunchFailed(container.getId());
+				return;
 			}
 
-			String domainControllerValue;
-			if (domainController == null) {
-				domainControllerValue = host;
+			String jbossConfigurationCommand;
+			String jbossCommand;
+			Map<String, String> jvmEnv = new HashMap<String, String>();
+			if (mode == LaunchMode.STANDALONE) {
+				jbossConfigurationCommand = String.format(
+						"cp %s %s %s%sstandalone%sconfiguration",
+						ContainerConfigStager.STANDALONE_XML,
+						ContainerConfigStager.MGMT_USERS, jbossHome,
+						File.separator, File.separator);
+				jbossCommand = String
+						.format("%s%sbin%sstandalone.sh -Djboss.bind.address=%s -Djboss.bind.address.management=%s -Djboss.bind.address.unsecure=%s -Djboss.socket.binding.port-offset=%s -Djboss.node.name=%s",
+								jbossHome, File.separator, File.separator,
+								host, host, host, binding.getPortOffset(),
+								containerId);
+				jvmEnv.put("JAVA_OPTS", sizing.getServer().getJavaOpts()
+						+ " " + DEFAULT_JAVA_OPTS);
 			} else {
-				domainControllerValue = domainController;
+				jbossConfigurationCommand = String.format(
+						"cp %s %s %s %s%sdomain%sconfiguration",
+						ContainerConfigStager.HOST_XML,
+						ContainerConfigStager.DOMAIN_XML,
+						ContainerConfigStager.MGMT_USERS, jbossHome,
+						File.separator, File.separator);
+				jbossCommand = String
+						.format("%s%sbin%sdomain.sh -Djboss.bind.address=%s -Djboss.bind.address.management=%s -Djboss.bind.address.unsecure=%s -Djboss.management.native.port=%s -Djboss.management.http.port=%s",
+								jbossHome, File.separator, File.separator,
+								host, host, host,
+								binding.getManagementNativePort(),
+								binding.getManagementHttpPort());
+				jvmEnv.put("PROCESS_CONTROLLER_JAVA_OPTS", sizing
+						.getProcessController().getJavaOpts()
+						+ " " + DEFAULT_JAVA_OPTS);
+				jvmEnv.put("HOST_CONTROLLER_JAVA_OPTS", sizing
+						.getHostController().getJavaOpts()
+						+ " " + DEFAULT_JAVA_OPTS);
 			}
 
-			String jbossConfigurationCommand = String
-					.format("%s/bin/java -cp %s %s --home %s --server_group %s --server %s --port_offset %s --admin_user %s --admin_password %s --domain_controller %s --host %s",
-							Environment.JAVA_HOME.$(),
-							"/opt/hadoop-2.1.0-beta/share/hadoop/common/lib/*"
-									+ File.pathSeparator + containerHome
-									+ File.separator
-									+ JBossConstants.JBOSS_ON_YARN_APP,
-							JBossConfiguration.class.getName(), jbossHome,
-							applicationId, containerId, portOffset, adminUser,
-							adminPassword, domainControllerValue, host);
-
 			LOG.info("Configuring JBoss on " + host + " with: "
 					+ jbossConfigurationCommand);
 
-			String jbossCommand = String
-					.format("%s%sbin%sdomain.sh -Djboss.bind.address=%s -Djboss.bind.address.management=%s -Djboss.bind.address.unsecure=%s",
-							jbossHome, File.separator, File.separator, host,
-							host, host);
+			if (sizing.getSupervisor() != null) {
+				jbossCommand = String
+						.format("%s/bin/java %s -cp %s%s%s %s --report %s%s --container_id %s --max_fast_failures %s --fast_failure_time %s %s",
+								Environment.JAVA_HOME.$(), sizing
+										.getSupervisor().getJavaOpts(),
+								Environment.PWD.$(), File.separator,
+								JBossConstants.JBOSS_ON_YARN_APP,
+								JBossSupervisor.class.getName(),
+								httpServer.getUrl(), RESTARTS_PATH,
+								containerId, maxFastFailures,
+								fastFailureTimeMs, jbossCommand);
+				jvmEnv.put(JBossConstants.REPORT_TOKEN_ENV,
+						controlSecret.getToken(container.getId()));
+			}
 
 			LOG.info("Starting JBoss with: " + jbossCommand);
 
-			commands.add(jbossPermissionsCommand);
+			commands.add(jbossOverlayCommand);
 			commands.add(JBossConstants.COMMAND_CHAIN);
 			commands.add(jbossConfigurationCommand);
 			commands.add(JBossConstants.COMMAND_CHAIN);
 			commands.add(jbossCommand);
 
-			ctx.setCommands(commands);
+			ContainerLaunchContext ctx;
+			try {
+				ctx = launchTemplate.newLaunchContext(commands,
+						configResources, jvmEnv);
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, "Problem setting local resources", e);
+				containerLaunchFailed(container.getId());
+				return;
+			}
 
 			containerListener.addContainer(container.getId(), container);
+			localizationTimer.starting(binding);
 			nmClientAsync.startContainerAsync(container, ctx);
+			metrics.launched(container.getId());
+		}
+	}
+
+	/**
+	 * Receives the restarts in place reported by the supervisors in the
+	 * containers. A report must carry the token of its container and come
+	 * from the container's host.
+	 */
+	private class RestartReportHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> report = MasterHttpServer
+					.getParameters(exchange);
+			ContainerId containerId;
+			try {
+				containerId = ConverterUtils.toContainerId(report
+						.get("container"));
+			} catch (RuntimeException e) {
+				MasterHttpServer.respond(exchange, 400, "text/plain",
+						"Invalid container " + report.get("container"));
+				return;
+			}
+			if (!isFromContainer(exchange, containerId)) {
+				LOG.warning("Refused restart report for " + containerId
+						+ " from " + exchange.getRemoteAddress());
+				MasterHttpServer.respond(exchange, 403, "text/plain",
+						"Report not authenticated for " + containerId);
+				return;
+			}
+			String cause = report.get("cause");
+			if ("restart".equals(report.get("event"))) {
+				AllocationTracker.Server server = allocation.restarted(
+						containerId, cause);
+				healthProber.restarted(containerId);
+				metrics.restarted();
+				if (healthIntervalMs > 0) {
+					endpoints.remove(containerId);
+				}
+				LOG.warning("JBoss in container " + containerId + " of "
+						+ server + " restarted in place after " + cause
+						+ ", uptime=" + report.get("uptime") + " ms, restarts="
+						+ report.get("restarts"));
+			} else {
+				LOG.warning("Supervisor of container " + containerId
+						+ " gave up after " + cause);
+			}
+			MasterHttpServer.respond(exchange, 200, "text/plain", "OK");
+		}
+	}
+
+	/**
+	 * Serves the precomputed status summary for monitoring.
+	 */
+	private class StatusHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			ServiceStatus current = status;
+			if (current == null) {
+				MasterHttpServer.respond(exchange, 503, "text/plain",
+						"state=starting\n");
+				return;
+			}
+			MasterHttpServer.respond(exchange, 200, "text/plain",
+					current.getText());
+		}
+	}
+
+	/**
+	 * Serves the lifecycle metrics, the servers and the start times as JSON
+	 * at the tracking URL.
+	 */
+	private class MetricsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			if (!"/".equals(path)
+					&& !JBossConstants.AM_METRICS_PATH.equals(path)) {
+				MasterHttpServer.respond(exchange, 404, "text/plain",
+						"Not found: " + path);
+				return;
+			}
+			LifecycleMetrics current = metrics;
+			if (current == null) {
+				MasterHttpServer.respond(exchange, 503, "text/plain",
+						"Application master is starting");
+				return;
+			}
+			ObjectNode result = current.toJson();
+			result.put("application", appAttemptID.toString());
+			ObjectNode servers = result.putObject("servers");
+			servers.put("target", allocation.getTargetCount());
+			for (AllocationTracker.State state : AllocationTracker.State
+					.values()) {
+				servers.put(state.name().toLowerCase(),
+						allocation.getCount(state));
+			}
+			ObjectNode starts = result.putObject("containerStarts");
+			starts.put("avgColdMs", localizationTimer.getAverageColdStartMs());
+			starts.put("avgWarmMs", localizationTimer.getAverageWarmStartMs());
+			result.put("blacklistedNodes", nodeFailures.getBlacklisted()
+					.size());
+			result.put("endpointsVersion", endpoints.getVersion());
+			MasterHttpServer.respond(exchange, 200, "application/json",
+					result.toString());
+		}
+	}
+
+	/**
+	 * Serves the endpoint registry. A GET with the version the reader has as
+	 * the since parameter only returns the changes after it.
+	 */
+	private class EndpointsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			long since = -1;
+			String value = MasterHttpServer.getParameters(exchange).get(
+					"since");
+			if (value != null) {
+				try {
+					since = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					MasterHttpServer.respond(exchange, 400, "text/plain",
+							"Invalid version " + value);
+					return;
+				}
+			}
+			MasterHttpServer.respond(exchange, 200, "application/json",
+					endpoints.toJson(since).toString());
+		}
+	}
+
+	/**
+	 * @return true if a request carries the token of a running container
+	 *         and comes from the container's host
+	 */
+	private boolean isFromContainer(HttpExchange exchange,
+			ContainerId containerId) {
+		PortOffsetAllocator.Binding binding = portOffsets
+				.getBinding(containerId);
+		if (binding == null
+				|| !controlSecret.matchesToken(containerId, exchange
+						.getRequestHeaders().getFirst(
+								JBossConstants.REPORT_TOKEN_HEADER))) {
+			return false;
+		}
+		InetAddress source = exchange.getRemoteAddress().getAddress();
+		try {
+			for (InetAddress address : InetAddress.getAllByName(binding
+					.getHost())) {
+				if (address.equals(source)) {
+					return true;
+				}
+			}
+		} catch (UnknownHostException e) {
+			LOG.warning("Cannot resolve container host " + binding.getHost());
+		}
+		return false;
+	}
+
+	/**
+	 * Changes the number of servers of the running domain. Takes a POST with
+	 * the new number as the servers parameter and answers with JSON
+	 * describing the change. The caller must present the control secret,
+	 * which only the submitting user can read.
+	 */
+	private class ResizeHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				MasterHttpServer.respond(exchange, 405, "text/plain",
+						"Resize needs a POST");
+				return;
+			}
+			if (!controlSecret.matches(exchange.getRequestHeaders().getFirst(
+					JBossConstants.CONTROL_SECRET_HEADER))) {
+				LOG.warning("Refused resize without the control secret from "
+						+ exchange.getRemoteAddress());
+				MasterHttpServer.respond(exchange, 403, "text/plain",
+						"Resize needs the control secret");
+				return;
+			}
+			int target;
+			try {
+				target = Integer.parseInt(MasterHttpServer.getParameters(
+						exchange).get("servers"));
+			} catch (NumberFormatException e) {
+				target = 0;
+			}
+			if (target < 1) {
+				MasterHttpServer.respond(exchange, 400, "text/plain",
+						"The servers parameter must be a positive number");
+				return;
+			}
+			MasterHttpServer.respond(exchange, 200, "application/json",
+					resize(target).toString());
+		}
+	}
+
+	/**
+	 * Grow or shrink the domain to a number of servers. Growing adds servers
+	 * and asks for their containers in one batch. Shrinking first retires
+	 * servers still waiting for a container and withdraws their asks, then
+	 * drains and releases the servers with the fewest active sessions.
+	 * Containers still held back by the domain startup are released without
+	 * draining. The domain controller is never retired.
+	 * 
+	 * @param target
+	 *            Number of servers wanted
+	 * @return Description of the change
+	 */
+	private synchronized ObjectNode resize(int target) {
+		int current = allocation.getTargetCount();
+		ObjectNode result = new ObjectMapper().createObjectNode();
+		result.put("previous", current);
+		result.put("target", target);
+		ArrayNode retiring = result.putArray("retiring");
+		if (target != current) {
+			metrics.scaleEvent();
+			heartbeats.activity();
+		}
+		if (target > current) {
+			LOG.info("Growing the domain from " + current + " to " + target
+					+ " servers");
+			allocation.addServers(target - current);
+			replenishContainers();
+		} else if (target < current) {
+			LOG.info("Shrinking the domain from " + current + " to "
+					+ target + " servers");
+			int excess = current - target;
+			int idle = allocation.retireIdle(excess);
+			metrics.cancelled(idle);
+			cancelSurplusAsks();
+			excess -= idle;
+			for (AllocationTracker.Server server : getLeastLoaded(excess)) {
+				ContainerId containerId = server.getContainer().getId();
+				if (allocation.retire(containerId)) {
+					healthProber.unwatch(containerId);
+					endpoints.remove(containerId);
+					if (startup.withdraw(containerId)) {
+						releaseUnstarted(containerId);
+					} else {
+						drainAndRelease(server.getContainer());
+					}
+					retiring.add(containerId.toString());
+				}
+			}
+		}
+		result.put("servers", allocation.toString());
+		return result;
+	}
+
+	/**
+	 * Remove the asks of servers that no longer wait for a container from the
+	 * planner and the RM, so the RM does not allocate containers that would
+	 * only be released as surplus.
+	 */
+	@SuppressWarnings("unchecked")
+	private void cancelSurplusAsks() {
+		int surplus = planner.getOutstandingCount()
+				- allocation.getCount(AllocationTracker.State.REQUESTED);
+		if (surplus <= 0) {
+			return;
+		}
+		for (ContainerRequest containerAsk : planner.cancel(surplus)) {
+			resourceManager.removeContainerRequest(containerAsk);
+		}
+	}
+
+	/**
+	 * Release the container of a retiring server that was never launched.
+	 * 
+	 * @param containerId
+	 *            Container of the retiring server
+	 */
+	private void releaseUnstarted(ContainerId containerId) {
+		LOG.info("Releasing container " + containerId
+				+ " of a retired server before its launch");
+		planner.released(containerId);
+		portOffsets.release(containerId);
+		resourceManager.releaseAssignedContainer(containerId);
+	}
+
+	/**
+	 * Drain a retiring server and release its container once its requests
+	 * are finished or the drain time has passed.
+	 * 
+	 * @param container
+	 *            Container of the retiring server
+	 */
+	private void drainAndRelease(Container container) {
+		PortOffsetAllocator.Binding binding = portOffsets
+				.getBinding(container.getId());
+		ServerDrainer.Listener release = new ServerDrainer.Listener() {
+			public void drained(PortOffsetAllocator.Binding binding,
+					boolean quiesced) {
+				LOG.info("Releasing container " + binding.getContainerId()
+						+ " of a retired server");
+				resourceManager.releaseAssignedContainer(binding
+						.getContainerId());
+			}
+		};
+		if (binding == null) {
+			resourceManager.releaseAssignedContainer(container.getId());
+		} else {
+			drainer.drain(Collections.singletonList(binding), null,
+					drainTimeMs, release);
+		}
+	}
+
+	/**
+	 * Drain the servers of all running containers in parallel, then stop
+	 * the containers concurrently and wait for the NodeManagers to confirm.
+	 */
+	private void drainServers() {
+		List<PortOffsetAllocator.Binding> running = new ArrayList<PortOffsetAllocator.Binding>();
+		for (Container container : containerListener.getContainers()) {
+			PortOffsetAllocator.Binding binding = portOffsets
+					.getBinding(container.getId());
+			if (binding != null) {
+				running.add(binding);
+			}
+		}
+		if (running.isEmpty()) {
+			return;
+		}
+		endpoints.clear();
+		endpoints.publish();
+		LOG.info("Draining " + running.size() + " servers");
+		PortOffsetAllocator.Binding controller = startup.getController();
+		drainer.drain(running, controller == null ? null : controller
+				.getContainerId(), drainTimeMs, null);
+		try {
+			if (!drainer.awaitDrained(drainTimeMs + 2 * healthTimeoutMs)) {
+				LOG.warning("Servers still draining, stopping them anyway. "
+						+ drainer);
+			}
+			for (PortOffsetAllocator.Binding binding : running) {
+				Container container = containerListener.getContainer(binding
+						.getContainerId());
+				if (container != null) {
+					nmClientAsync.stopContainerAsync(container.getId(),
+							container.getNodeId());
+				}
+			}
+			if (!drainer.awaitStopped(CONTAINER_STOP_TIMEOUT_MS)) {
+				LOG.warning("Not all containers confirmed stopping. "
+						+ drainer);
+			}
+		} catch (InterruptedException e) {
+			LOG.info("Interrupted while draining servers");
+			Thread.currentThread().interrupt();
+		}
+		LOG.info("Servers drained. " + drainer);
+	}
+
+	/**
+	 * Pick the servers to retire: those not serving yet first, then those
+	 * with the fewest active HTTP sessions. A server whose sessions cannot
+	 * be read counts as idle.
+	 */
+	private List<AllocationTracker.Server> getLeastLoaded(int count) {
+		PortOffsetAllocator.Binding controller = startup.getController();
+		final Map<AllocationTracker.Server, Integer> loads = new HashMap<AllocationTracker.Server, Integer>();
+		List<AllocationTracker.Server> candidates = new ArrayList<AllocationTracker.Server>();
+		for (AllocationTracker.Server server : allocation
+				.getRetirementCandidates()) {
+			ContainerId containerId = server.getContainer().getId();
+			if (mode == LaunchMode.DOMAIN && controller != null
+					&& controller.getContainerId().equals(containerId)) {
+				continue;
+			}
+			PortOffsetAllocator.Binding binding = portOffsets
+					.getBinding(containerId);
+			int load = -1;
+			if (server.getState() == AllocationTracker.State.RUNNING
+					&& binding != null) {
+				try {
+					load = management.getActiveSessions(mode, false, binding);
+				} catch (IOException e) {
+					LOG.info("Cannot read the sessions of " + server + ": "
+							+ e.getMessage());
+					load = 0;
+				}
+			}
+			loads.put(server, load);
+			candidates.add(server);
+		}
+		Collections.sort(candidates,
+				new Comparator<AllocationTracker.Server>() {
+					public int compare(AllocationTracker.Server a,
+							AllocationTracker.Server b) {
+						return loads.get(a).compareTo(loads.get(b));
+					}
+				});
+		LOG.info("Server loads for retirement " + loads);
+		return candidates.subList(0, Math.min(count, candidates.size()));
+	}
+
+	/**
+	 * Spread the reads of many localizing containers over more DataNodes
+	 * by raising the replication of the shared artifacts. The replication
+	 * is left raised, as the artifacts are shared with other applications.
+	 */
+	private void raiseArtifactReplication() {
+		int replication = Math.min(artifactReplication, numTotalContainers);
+		if (replication <= 1) {
+			return;
+		}
+		try {
+			launchTemplate.raiseReplication((short) replication);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Problem raising artifact replication", e);
+		}
+	}
+
+	/**
+	 * Keep the staged application jar from being cleaned up while
+	 * replacement containers may still need it.
+	 */
+	private void touchStagedJar() {
+		try {
+			Path jar = new Path(appJar);
+			StagingCache.touch(jar.getFileSystem(conf), jar);
+		} catch (IOException e) {
+			LOG.info("Problem marking " + appJar + " as used: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop the container of a server that stopped answering. Its completion
+	 * comes back from the RM as a failure and the server is asked for
+	 * again like after any other container failure.
+	 * 
+	 * @param containerId
+	 *            Container of the unhealthy server
+	 */
+	private void stopUnhealthyContainer(ContainerId containerId) {
+		Container container = containerListener.getContainer(containerId);
+		if (container == null) {
+			return;
+		}
+		LOG.warning("Stopping unhealthy container " + containerId + " of "
+				+ allocation.getServer(containerId));
+		nmClientAsync.stopContainerAsync(containerId, container.getNodeId());
+	}
+
+	/**
+	 * Ask the RM for a container for every server that needs one. While
+	 * containers keep failing the asks are delayed, see
+	 * {@link NodeFailureTracker#getRetryDelayMs()}.
+	 */
+	private void replenishContainers() {
+		long delayMs = nodeFailures.getRetryDelayMs();
+		if (delayMs == 0) {
+			int askCount = allocation.reconcile();
+			if (askCount > 0) {
+				requestContainers(askCount);
+			}
+		} else if (replenishScheduled.compareAndSet(false, true)) {
+			LOG.info("Asking for replacement containers in " + delayMs
+					+ " ms");
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					replenishScheduled.set(false);
+					int askCount = allocation.reconcile();
+					if (askCount > 0) {
+						requestContainers(askCount);
+					}
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Replace the ask of a container released from a blacklisted node,
+	 * after the retry delay, unless its server stopped waiting meanwhile.
+	 * Relaxed asks cannot avoid the node, so only a few releases in a row
+	 * are re-asked, see {@link #MAX_BLACKLISTED_RELEASES}; after that the
+	 * container is kept.
+	 */
+	private void reaskLater() {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				if (planner.getOutstandingCount() < allocation
+						.getCount(AllocationTracker.State.REQUESTED)) {
+					requestContainers(1);
+				}
+			}
+		}, nodeFailures.getRetryDelayMs(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Count a container failure against its node and blacklist the node
+	 * once it has failed too often.
+	 * 
+	 * @param host
+	 *            Node of the failed container
+	 */
+	private void nodeFailed(String host) {
+		if (nodeFailures.failed(host, resourceManager.getClusterNodeCount())) {
+			planner.setExcluded(host, true);
+		}
+		LOG.info("Node failures. " + nodeFailures);
+	}
+
+	private void expireBlacklist() {
+		for (String host : nodeFailures.expire()) {
+			planner.setExcluded(host, false);
 		}
 	}
 
 	/**
-	 * Setup the request that will be sent to the RM for the container ask.
+	 * Give back a container that could not be launched and ask for a
+	 * replacement.
+	 * 
+	 * @param containerId
+	 *            Container that failed to launch
+	 */
+	private void containerLaunchFailed(ContainerId containerId) {
+		localizationTimer.completed(containerId);
+		allocation.launchFailed(containerId);
+		metrics.launchFailed(containerId);
+		resourceManager.releaseAssignedContainer(containerId);
+		planner.released(containerId);
+		portOffsets.release(containerId);
+		startup.completed(containerId);
+		replenishContainers();
+		if (allocation.isFinished()) {
+			signalDone("all servers completed");
+		}
+	}
+
+	/**
+	 * Plan a batch of container asks and send them to the RM. Located asks
+	 * fall back to any node if they are still outstanding after the locality
+	 * timeout.
 	 * 
 	 * @param numContainers
 	 *            Containers to ask for from RM
-	 * @return the setup ResourceRequest to be sent to RM
 	 */
-	private ContainerRequest setupContainerAskForRM() {
-		Priority pri = Records.newRecord(Priority.class);
-		pri.setPriority(requestPriority);
+	@SuppressWarnings("unchecked")
+	private void requestContainers(int numContainers) {
+		metrics.asked(numContainers);
+		heartbeats.activity();
+		for (ContainerRequest containerAsk : planner.plan(numContainers)) {
+			resourceManager.addContainerRequest(containerAsk);
+			LOG.info("Requested container ask: " + containerAsk.toString());
+		}
+		if (placementPolicy != PlacementPlanner.Policy.ANY) {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					relaxExpiredAsks();
+				}
+			}, localityTimeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void relaxExpiredAsks() {
+		List<ContainerRequest> expired = planner
+				.expireLocated(localityTimeoutMs);
+		for (ContainerRequest containerAsk : expired) {
+			resourceManager.removeContainerRequest(containerAsk);
+		}
+		for (ContainerRequest containerAsk : planner.planRelaxed(expired
+				.size())) {
+			resourceManager.addContainerRequest(containerAsk);
+			LOG.info("Requested relaxed container ask: "
+					+ containerAsk.toString());
+		}
+	}
+
+	/**
+	 * Fetch the running nodes of the cluster for the placement planner. Later
+	 * changes arrive through {@link RMCallbackHandler#onNodesUpdated(List)}.
+	 * 
+	 * @return Reports of the running nodes, empty if they cannot be fetched
+	 */
+	private List<NodeReport> getRunningNodes() {
+		YarnClient yarnClient = YarnClient.createYarnClient();
+		yarnClient.init(conf);
+		yarnClient.start();
+		try {
+			return yarnClient.getNodeReports(NodeState.RUNNING);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING,
+					"Problem fetching node reports, placing containers anywhere",
+					e);
+			return new ArrayList<NodeReport>();
+		} finally {
+			yarnClient.stop();
+		}
+	}
 
+	/**
+	 * Setup the resources of every container asked from the RM.
+	 * 
+	 * @return the capability of a JBoss container
+	 */
+	private Resource setupContainerCapability() {
 		Resource capability = Records.newRecord(Resource.class);
 		capability.setMemory(containerMemory);
-		capability.setVirtualCores(2);
-
-		ContainerRequest request = new ContainerRequest(capability, null, null,
-				pri);
-		LOG.info("Requested container ask: " + request.toString());
-		return request;
+		capability.setVirtualCores(containerVirtualCores);
+		return capability;
 	}
-}
\ No newline at end of file
+}
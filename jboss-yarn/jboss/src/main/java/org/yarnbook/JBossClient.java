@@ -20,11 +20,18 @@ package org.yarnbook;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +40,7 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -86,7 +94,31 @@ public class JBossClient {
 	private int shellCmdPriority = 0;
 
 	private int containerMemory = 1024;
+	private int containerVirtualCores = 2;
 	private int numContainers = 2;
+	private int numLaunchThreads = 10;
+	private long launchShutdownTimeoutMs = 30000;
+	private int heartbeatIntervalMs = 250;
+	private int maxHeartbeatIntervalMs = 15000;
+	private int artifactReplication = 10;
+	private int maxFastFailures = 3;
+	private long fastFailureTimeMs = 60000;
+	private long drainTimeMs = 30000;
+	private ApplicationId resizeAppId;
+	private double blacklistThreshold = 3;
+	private long nodeFailureHalfLifeMs = 600000;
+	private int maxAmAttempts = 0;
+	private long healthIntervalMs = 10000;
+	private int healthTimeoutMs = 2000;
+	private int healthThreshold = 3;
+	private long healthGraceMs = 300000;
+	private int numHealthThreads = 4;
+	private int startupWaveSize = 10;
+	private long startupWaveTimeoutMs = 120000;
+	private int maxServerFailures = 3;
+	private String placementPolicy = "spread";
+	private String mode = "domain";
+	private long localityTimeoutMs = 30000;
 
 	private String adminUser;
 	private String adminPassword;
@@ -94,6 +126,13 @@ public class JBossClient {
 
 	private String log4jPropFile = "";
 
+	private long stagingMaxAgeMs = 7 * 24 * 3600 * 1000L;
+
+	private long minPollIntervalMs = 500;
+	private long maxPollIntervalMs = 30000;
+
+	private final List<ApplicationStateListener> stateListeners = new CopyOnWriteArrayList<ApplicationStateListener>();
+
 	boolean debugFlag = false;
 
 	private Options opts;
@@ -150,13 +189,67 @@ public class JBossClient {
 				"JAR file containing the application master");
 		opts.addOption("container_memory", true,
 				"Amount of memory in MB to be requested to run the shell command");
+		opts.addOption("container_vcores", true,
+				"No. of virtual cores to be requested for each JBoss AS container. Default 2");
 		opts.addOption("num_containers", true,
 				"No. of containers on which the shell command needs to be executed");
+		opts.addOption("max_server_failures", true,
+				"No. of container failures after which a server is not replaced any more. Default 3");
+		opts.addOption("mode", true,
+				"How JBoss AS runs in each container: domain or standalone. Default domain");
+		opts.addOption("placement", true,
+				"Container placement policy: spread, pack or any. Default spread");
+		opts.addOption("locality_timeout", true,
+				"Time in ms before located container asks fall back to any node. Default 30000");
+		opts.addOption("startup_wave_size", true,
+				"Max no. of slaves started at once after the domain controller. Default 10");
+		opts.addOption("startup_wave_timeout", true,
+				"Time in ms to wait for a startup wave to serve before starting the next one. Default 120000");
+		opts.addOption("artifact_replication", true,
+				"HDFS replication the JBoss distribution and application jar are raised to before launching many containers. Default 10");
+		opts.addOption("heartbeat_interval", true,
+				"Interval in ms between AM heartbeats to the RM while containers are asked for or launching. Default 250");
+		opts.addOption("max_heartbeat_interval", true,
+				"Interval in ms between AM heartbeats to the RM once the domain is steady. Default 15000");
+		opts.addOption("launch_threads", true,
+				"Max no. of containers the application master launches concurrently. Default 10");
+		opts.addOption("launch_timeout", true,
+				"Time in ms the application master waits for pending container launches on shutdown. Default 30000");
+		opts.addOption("max_am_attempts", true,
+				"No. of application master attempts, later attempts restarting the JBoss domain. Default set by the RM");
+		opts.addOption("max_fast_failures", true,
+				"No. of quick JBoss failures in a row after which a container is given up instead of restarting JBoss in place, 0 to never restart in place. Default 3");
+		opts.addOption("fast_failure_time", true,
+				"Time in ms a JBoss run must last to not count as a quick failure. Default 60000");
+		opts.addOption("drain_time", true,
+				"Time in ms servers get to finish their requests when they are retired or the application stops, before their containers are stopped. Default 30000");
+		opts.addOption("resize", true,
+				"Id of a running application to resize to num_containers servers instead of submitting a new one");
+		opts.addOption("blacklist_threshold", true,
+				"Decayed no. of container failures at which a node is blacklisted, 0 to never blacklist. Default 3");
+		opts.addOption("node_failure_half_life", true,
+				"Time in ms in which the failures counted against a node halve. Default 600000");
+		opts.addOption("health_interval", true,
+				"Time in ms between health probes of the JBoss servers, 0 to disable. Default 10000");
+		opts.addOption("health_timeout", true,
+				"Time in ms a JBoss server has to answer a health probe. Default 2000");
+		opts.addOption("health_threshold", true,
+				"No. of failed health probes in a row after which a JBoss server is replaced. Default 3");
+		opts.addOption("health_grace", true,
+				"Time in ms after a container started before failed health probes count. Default 300000");
+		opts.addOption("health_threads", true,
+				"Max no. of health probes running concurrently. Default 4");
 		opts.addOption("admin_user", true,
 				"User id for initial administrator user");
 		opts.addOption("admin_password", true,
 				"Password for initial administrator user");
 		opts.addOption("log_properties", true, "log4j.properties file");
+		opts.addOption("staging_max_age", true,
+				"Hours after which a staged jar or log4j.properties that no running application uses is removed. Default 168");
+		opts.addOption("poll_interval", true,
+				"Interval in ms between application reports while the application is starting. Default 500");
+		opts.addOption("max_poll_interval", true,
+				"Maximum interval in ms between application reports once the application is running. Default 30000");
 		opts.addOption("debug", false, "Dump out debug information");
 		opts.addOption("help", false, "Print usage");
 	}
@@ -167,6 +260,17 @@ public class JBossClient {
 		this(new YarnConfiguration());
 	}
 
+	/**
+	 * Register a listener to be told about state transitions of the submitted
+	 * application.
+	 * 
+	 * @param listener
+	 *            Listener to add
+	 */
+	public void addStateListener(ApplicationStateListener listener) {
+		stateListeners.add(listener);
+	}
+
 	/**
 	 * Helper function to print out usage
 	 */
@@ -215,6 +319,19 @@ public class JBossClient {
 							+ " Specified memory=" + amMemory);
 		}
 
+		if (cliParser.hasOption("resize")) {
+			resizeAppId = ConverterUtils.toApplicationId(cliParser
+					.getOptionValue("resize"));
+			numContainers = Integer.parseInt(cliParser.getOptionValue(
+					"num_containers", "1"));
+			if (numContainers < 1) {
+				throw new IllegalArgumentException(
+						"Cannot resize to less than one server, specified="
+								+ numContainers);
+			}
+			return true;
+		}
+
 		if (!cliParser.hasOption("jar")) {
 			throw new IllegalArgumentException(
 					"No jar file specified for application master");
@@ -224,11 +341,64 @@ public class JBossClient {
 
 		containerMemory = Integer.parseInt(cliParser.getOptionValue(
 				"container_memory", "10"));
+		containerVirtualCores = Integer.parseInt(cliParser.getOptionValue(
+				"container_vcores", "2"));
 		numContainers = Integer.parseInt(cliParser.getOptionValue(
 				"num_containers", "1"));
+		artifactReplication = Integer.parseInt(cliParser.getOptionValue(
+				"artifact_replication", "10"));
+		maxAmAttempts = Integer.parseInt(cliParser.getOptionValue(
+				"max_am_attempts", "0"));
+		maxFastFailures = Integer.parseInt(cliParser.getOptionValue(
+				"max_fast_failures", "3"));
+		fastFailureTimeMs = Long.parseLong(cliParser.getOptionValue(
+				"fast_failure_time", "60000"));
+		drainTimeMs = Long.parseLong(cliParser.getOptionValue("drain_time",
+				"30000"));
+		blacklistThreshold = Double.parseDouble(cliParser.getOptionValue(
+				"blacklist_threshold", "3"));
+		nodeFailureHalfLifeMs = Long.parseLong(cliParser.getOptionValue(
+				"node_failure_half_life", "600000"));
+		healthIntervalMs = Long.parseLong(cliParser.getOptionValue(
+				"health_interval", "10000"));
+		healthTimeoutMs = Integer.parseInt(cliParser.getOptionValue(
+				"health_timeout", "2000"));
+		healthThreshold = Integer.parseInt(cliParser.getOptionValue(
+				"health_threshold", "3"));
+		healthGraceMs = Long.parseLong(cliParser.getOptionValue(
+				"health_grace", "300000"));
+		numHealthThreads = Integer.parseInt(cliParser.getOptionValue(
+				"health_threads", "4"));
+		numLaunchThreads = Integer.parseInt(cliParser.getOptionValue(
+				"launch_threads", "10"));
+		launchShutdownTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"launch_timeout", "30000"));
+		heartbeatIntervalMs = Integer.parseInt(cliParser.getOptionValue(
+				"heartbeat_interval", "250"));
+		maxHeartbeatIntervalMs = Integer.parseInt(cliParser.getOptionValue(
+				"max_heartbeat_interval", "15000"));
+		startupWaveSize = Integer.parseInt(cliParser.getOptionValue(
+				"startup_wave_size", "10"));
+		startupWaveTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"startup_wave_timeout", "120000"));
+		maxServerFailures = Integer.parseInt(cliParser.getOptionValue(
+				"max_server_failures", "3"));
+		mode = LaunchMode.parse(cliParser.getOptionValue("mode", "domain"))
+				.name().toLowerCase();
+		placementPolicy = PlacementPlanner.Policy
+				.parse(cliParser.getOptionValue("placement", "spread"))
+				.name().toLowerCase();
+		localityTimeoutMs = Long.parseLong(cliParser.getOptionValue(
+				"locality_timeout", "30000"));
 		adminUser = cliParser.getOptionValue("admin_user", "yarn");
 		adminPassword = cliParser.getOptionValue("admin_password", "yarn");
 
+		if (numLaunchThreads < 1) {
+			throw new IllegalArgumentException(
+					"Invalid no. of launch threads specified, exiting."
+							+ " Specified launchThreads=" + numLaunchThreads);
+		}
+
 		if (containerMemory < 0 || numContainers < 1) {
 			throw new IllegalArgumentException(
 					"Invalid no. of containers or container memory specified, exiting."
@@ -236,7 +406,27 @@ public class JBossClient {
 							+ ", numContainer=" + numContainers);
 		}
 
+		if (containerVirtualCores < 1) {
+			throw new IllegalArgumentException(
+					"Invalid no. of container virtual cores specified, exiting."
+							+ " Specified containerVirtualCores="
+							+ containerVirtualCores);
+		}
+
 		log4jPropFile = cliParser.getOptionValue("log_properties", "");
+		stagingMaxAgeMs = Long.parseLong(cliParser.getOptionValue(
+				"staging_max_age", "168")) * 3600 * 1000L;
+
+		minPollIntervalMs = Long.parseLong(cliParser.getOptionValue(
+				"poll_interval", "500"));
+		maxPollIntervalMs = Long.parseLong(cliParser.getOptionValue(
+				"max_poll_interval", "30000"));
+		if (minPollIntervalMs < 1 || maxPollIntervalMs < minPollIntervalMs) {
+			throw new IllegalArgumentException(
+					"Invalid polling intervals specified, exiting."
+							+ " Specified pollInterval=" + minPollIntervalMs
+							+ ", maxPollInterval=" + maxPollIntervalMs);
+		}
 
 		return true;
 	}
@@ -253,6 +443,10 @@ public class JBossClient {
 		LOG.info("Running Client");
 		yarnClient.start();
 
+		if (resizeAppId != null) {
+			return resize(resizeAppId, numContainers);
+		}
+
 		YarnClusterMetrics clusterMetrics = yarnClient.getYarnClusterMetrics();
 		LOG.info("Got Cluster metric info from ASM" + ", numNodeManagers="
 				+ clusterMetrics.getNumNodeManagers());
@@ -306,15 +500,14 @@ public class JBossClient {
 
 		Map<String, LocalResource> localResources = new HashMap<String, LocalResource>();
 
-		LOG.info("Copy App Master jar from local filesystem and add to local environment");
+		LOG.info("Stage App Master jar and add to local environment");
 		FileSystem fs = FileSystem.get(conf);
-		Path src = new Path(appJar);
-		String pathSuffix = appName + File.separator + appId.getId()
-				+ File.separator
-				+ JBossConstants.JBOSS_ON_YARN_APP;
-		Path dst = new Path(fs.getHomeDirectory(), pathSuffix);
+		StagingCache stagingCache = new StagingCache(fs, new Path(
+				fs.getHomeDirectory(), JBossConstants.JBOSS_YARN
+						+ File.separator + "staging"));
+		Path dst = stagingCache.stage(new Path(appJar),
+				JBossConstants.JBOSS_ON_YARN_APP, appId);
 		jbossAppUri = dst.toUri().toString();
-		fs.copyFromLocalFile(false, true, src, dst);
 		FileStatus destStatus = fs.getFileStatus(dst);
 		LocalResource amJarRsrc = Records.newRecord(LocalResource.class);
 
@@ -327,9 +520,8 @@ public class JBossClient {
 				amJarRsrc);
 
 		if (!log4jPropFile.isEmpty()) {
-			Path log4jSrc = new Path(log4jPropFile);
-			Path log4jDst = new Path(fs.getHomeDirectory(), "log4j.props");
-			fs.copyFromLocalFile(false, true, log4jSrc, log4jDst);
+			Path log4jDst = stagingCache.stage(new Path(log4jPropFile),
+					"log4j.properties", appId);
 			FileStatus log4jFileStatus = fs.getFileStatus(log4jDst);
 			LocalResource log4jRsrc = Records.newRecord(LocalResource.class);
 			log4jRsrc.setType(LocalResourceType.FILE);
@@ -374,8 +566,35 @@ public class JBossClient {
 		vargs.add("-Xmx" + amMemory + "m");
 		vargs.add(appMasterMainClass);
 		vargs.add("--container_memory " + String.valueOf(containerMemory));
+		vargs.add("--container_vcores "
+				+ String.valueOf(containerVirtualCores));
 		vargs.add("--num_containers " + String.valueOf(numContainers));
 		vargs.add("--priority " + String.valueOf(shellCmdPriority));
+		vargs.add("--launch_threads " + String.valueOf(numLaunchThreads));
+		vargs.add("--launch_timeout " + String.valueOf(launchShutdownTimeoutMs));
+		vargs.add("--heartbeat_interval " + String.valueOf(heartbeatIntervalMs));
+		vargs.add("--max_heartbeat_interval "
+				+ String.valueOf(maxHeartbeatIntervalMs));
+		vargs.add("--artifact_replication "
+				+ String.valueOf(artifactReplication));
+		vargs.add("--startup_wave_size " + String.valueOf(startupWaveSize));
+		vargs.add("--startup_wave_timeout "
+				+ String.valueOf(startupWaveTimeoutMs));
+		vargs.add("--max_server_failures " + String.valueOf(maxServerFailures));
+		vargs.add("--max_fast_failures " + String.valueOf(maxFastFailures));
+		vargs.add("--fast_failure_time " + String.valueOf(fastFailureTimeMs));
+		vargs.add("--drain_time " + String.valueOf(drainTimeMs));
+		vargs.add("--blacklist_threshold " + String.valueOf(blacklistThreshold));
+		vargs.add("--node_failure_half_life "
+				+ String.valueOf(nodeFailureHalfLifeMs));
+		vargs.add("--health_interval " + String.valueOf(healthIntervalMs));
+		vargs.add("--health_timeout " + String.valueOf(healthTimeoutMs));
+		vargs.add("--health_threshold " + String.valueOf(healthThreshold));
+		vargs.add("--health_grace " + String.valueOf(healthGraceMs));
+		vargs.add("--health_threads " + String.valueOf(numHealthThreads));
+		vargs.add("--mode " + mode);
+		vargs.add("--placement " + placementPolicy);
+		vargs.add("--locality_timeout " + String.valueOf(localityTimeoutMs));
 		vargs.add("--admin_user " + adminUser);
 		vargs.add("--admin_password " + adminPassword);
 		vargs.add("--jar " + jbossAppUri);
@@ -412,17 +631,56 @@ public class JBossClient {
 
 		appContext.setQueue(amQueue);
 
+		if (maxAmAttempts > 0) {
+			appContext.setMaxAppAttempts(maxAmAttempts);
+		}
+
 		LOG.info("Submitting the application to ASM");
 
 		yarnClient.submitApplication(appContext);
 
+		cleanStagingCache(stagingCache);
+
 		return monitorApplication(appId);
 	}
 
+	/**
+	 * Remove stale artifacts from the staging cache once this application
+	 * is submitted. Artifacts referenced by applications that have not
+	 * finished are kept; without the list of applications nothing is
+	 * removed.
+	 * 
+	 * @param stagingCache
+	 *            Cache the artifacts were staged in
+	 */
+	private void cleanStagingCache(StagingCache stagingCache) {
+		Set<String> liveApps = new HashSet<String>();
+		try {
+			for (ApplicationReport report : yarnClient.getApplications()) {
+				YarnApplicationState state = report.getYarnApplicationState();
+				if (state != YarnApplicationState.FINISHED
+						&& state != YarnApplicationState.FAILED
+						&& state != YarnApplicationState.KILLED) {
+					liveApps.add(report.getApplicationId().toString());
+				}
+			}
+		} catch (Exception e) {
+			LOG.info("Not cleaning the staging cache, cannot list the"
+					+ " applications: " + e.getMessage());
+			return;
+		}
+		stagingCache.clean(stagingMaxAgeMs, liveApps);
+	}
+
 	/**
 	 * Monitor the submitted application for completion. Kill application if
 	 * time expires.
 	 * 
+	 * Reports are polled quickly while the application is being scheduled
+	 * and started. Once it is running the interval doubles on every report
+	 * that shows no change, up to the maximum, and drops back to the minimum
+	 * on any state transition. Listeners are only told about transitions.
+	 * 
 	 * @param appId
 	 *            Application Id of application to be monitored
 	 * @return true if application completed successfully
@@ -432,31 +690,29 @@ public class JBossClient {
 	private boolean monitorApplication(ApplicationId appId)
 			throws YarnException, IOException {
 
+		YarnApplicationState lastState = null;
+		long pollIntervalMs = minPollIntervalMs;
+
 		while (true) {
 
 			try {
-				Thread.sleep(1000);
+				Thread.sleep(pollIntervalMs);
 			} catch (InterruptedException e) {
 				LOG.finest("Thread sleep in monitoring loop interrupted");
 			}
 
 			ApplicationReport report = yarnClient.getApplicationReport(appId);
 
-			LOG.info("Got application report from ASM for" + ", appId="
-					+ appId.getId() + ", clientToAMToken="
-					+ report.getClientToAMToken() + ", appDiagnostics="
-					+ report.getDiagnostics() + ", appMasterHost="
-					+ report.getHost() + ", appQueue=" + report.getQueue()
-					+ ", appMasterRpcPort=" + report.getRpcPort()
-					+ ", appStartTime=" + report.getStartTime()
-					+ ", yarnAppState="
-					+ report.getYarnApplicationState().toString()
-					+ ", distributedFinalState="
-					+ report.getFinalApplicationStatus().toString()
-					+ ", appTrackingUrl=" + report.getTrackingUrl()
-					+ ", appUser=" + report.getUser());
-
 			YarnApplicationState state = report.getYarnApplicationState();
+			if (state != lastState) {
+				fireStateChanged(appId, lastState, report);
+				lastState = state;
+				pollIntervalMs = minPollIntervalMs;
+			} else if (YarnApplicationState.RUNNING == state) {
+				pollIntervalMs = Math.min(pollIntervalMs * 2,
+						maxPollIntervalMs);
+			}
+
 			FinalApplicationStatus jbossStatus = report
 					.getFinalApplicationStatus();
 			if (YarnApplicationState.FINISHED == state) {
@@ -479,4 +735,124 @@ public class JBossClient {
 			}
 		}
 	}
+
+	/**
+	 * Ask the application master of a running application to change the
+	 * number of servers. The request goes to the original tracking URL, as
+	 * the RM web proxy only forwards GET requests. It carries the control
+	 * secret the application master published in the application's
+	 * directory, which only the submitting user can read.
+	 * 
+	 * @param appId
+	 *            Application to resize
+	 * @param servers
+	 *            Number of servers wanted
+	 * @return true if the application master accepted the new size
+	 * @throws YarnException
+	 * @throws IOException
+	 */
+	private boolean resize(ApplicationId appId, int servers)
+			throws YarnException, IOException {
+		ApplicationReport report = yarnClient.getApplicationReport(appId);
+		if (report.getYarnApplicationState() != YarnApplicationState.RUNNING) {
+			LOG.severe("Cannot resize " + appId + " in state "
+					+ report.getYarnApplicationState());
+			return false;
+		}
+		String trackingUrl = report.getOriginalTrackingUrl();
+		if (trackingUrl == null || trackingUrl.isEmpty()
+				|| "N/A".equals(trackingUrl)) {
+			LOG.severe("Application master of " + appId
+					+ " has no tracking URL to resize through");
+			return false;
+		}
+		if (!trackingUrl.contains("://")) {
+			trackingUrl = "http://" + trackingUrl;
+		}
+		FileSystem fs = FileSystem.get(conf);
+		String secret = ControlSecret.read(fs, new Path(
+				fs.getHomeDirectory(), JBossConstants.JBOSS_YARN
+						+ File.separator + appId + File.separator
+						+ JBossConstants.CONTROL_SECRET_FILE));
+		URL url = new URL(new URL(trackingUrl), JBossConstants.AM_RESIZE_PATH);
+		LOG.info("Resizing " + appId + " to " + servers + " servers at " + url);
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type",
+					"application/x-www-form-urlencoded");
+			connection.setRequestProperty(
+					JBossConstants.CONTROL_SECRET_HEADER, secret);
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(("servers=" + servers).getBytes("UTF-8"));
+			} finally {
+				Util.closeCloseable(out);
+			}
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			String body = "";
+			if (in != null) {
+				try {
+					body = IOUtils.toString(in, "UTF-8");
+				} finally {
+					Util.closeCloseable(in);
+				}
+			}
+			System.out.println(body);
+			if (status != HttpURLConnection.HTTP_OK) {
+				LOG.severe("Application master refused the resize with "
+						+ status);
+				return false;
+			}
+			return true;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private void fireStateChanged(ApplicationId appId,
+			YarnApplicationState previousState, ApplicationReport report) {
+		LOG.info("Got application report from ASM for" + ", appId="
+				+ appId.getId() + ", clientToAMToken="
+				+ report.getClientToAMToken() + ", appDiagnostics="
+				+ report.getDiagnostics() + ", appMasterHost="
+				+ report.getHost() + ", appQueue=" + report.getQueue()
+				+ ", appMasterRpcPort=" + report.getRpcPort()
+				+ ", appStartTime=" + report.getStartTime()
+				+ ", yarnAppState="
+				+ report.getYarnApplicationState().toString()
+				+ ", distributedFinalState="
+				+ report.getFinalApplicationStatus().toString()
+				+ ", appTrackingUrl=" + report.getTrackingUrl()
+				+ ", appUser=" + report.getUser());
+
+		for (ApplicationStateListener listener : stateListeners) {
+			try {
+				listener.onStateChanged(appId, previousState, report);
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "Application state listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Callback for state transitions of a monitored application.
+	 */
+	public interface ApplicationStateListener {
+
+		/**
+		 * @param appId
+		 *            Application whose state changed
+		 * @param previousState
+		 *            State before the transition, null for the first report
+		 * @param report
+		 *            Report carrying the new state
+		 */
+		void onStateChanged(ApplicationId appId,
+				YarnApplicationState previousState, ApplicationReport report);
+	}
 }
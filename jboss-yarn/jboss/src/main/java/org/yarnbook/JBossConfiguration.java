@@ -16,8 +16,10 @@ public class JBossConfiguration implements JBossConstants {
 	private static String jbossAdminUserName;
 	private static String jbossAdminUserPassword;
 	private static String jbossDomainController;
+	private static int jbossDomainControllerPort;
 	private static String jbossHostName;
 	private static int portOffset;
+	private static LaunchMode mode;
 
 	private static final Logger LOG = Logger.getLogger(JBossConfiguration.class
 			.getName());
@@ -31,6 +33,8 @@ public class JBossConfiguration implements JBossConstants {
 
 		opts = new Options();
 		opts.addOption("home", true, "JBoss AS home directory");
+		opts.addOption("mode", true,
+				"How JBoss AS runs: domain or standalone. Default domain");
 		opts.addOption("server_group", true, "JBoss AS server group name");
 		opts.addOption("server", true, "JBoss AS server name");
 		opts.addOption("port_offset", true,
@@ -41,6 +45,8 @@ public class JBossConfiguration implements JBossConstants {
 				"Initial admin user password added to ManagementRealm");
 		opts.addOption("domain_controller", true,
 				"Host for domain control");
+		opts.addOption("domain_controller_port", true,
+				"Native management port of the domain controller");
 		opts.addOption("host", true,
 				"Hostname of JBoss AS instance");
 	}
@@ -52,13 +58,15 @@ public class JBossConfiguration implements JBossConstants {
 		try {
 			conf.init(args);
 
-			Util.addAdminUser(jbossHome, jbossAdminUserName,
-					jbossAdminUserPassword, JBOSS_MGT_REALM);
-			Util.addDomainServerGroup(jbossHome, jbossServerGroupName);
-			Util.addDomainServer(jbossHome, jbossServerGroupName,
-					jbossServerName, portOffset);
-			Util.addDomainController(jbossHome, jbossDomainController,
-					jbossHostName, portOffset);
+			if (mode == LaunchMode.STANDALONE) {
+				DomainConfigRewriter.configureStandalone(jbossHome,
+						jbossAdminUserName, jbossAdminUserPassword);
+				return;
+			}
+			DomainConfigRewriter.configure(jbossHome, jbossServerGroupName,
+					jbossServerName, portOffset, jbossAdminUserName,
+					jbossAdminUserPassword, jbossDomainController,
+					jbossDomainControllerPort, jbossHostName);
 
 		} catch (Exception e) {
 			LOG.log(Level.SEVERE, "Problem configuring JBoss AS", e);
@@ -70,12 +78,17 @@ public class JBossConfiguration implements JBossConstants {
 		CommandLine cliParser = new GnuParser().parse(opts, args);
 
 		jbossHome = cliParser.getOptionValue("home");
+		mode = LaunchMode.parse(cliParser.getOptionValue("mode", "domain"));
 		jbossServerGroupName = cliParser.getOptionValue("server_group");
 		jbossServerName = cliParser.getOptionValue("server");
 		jbossAdminUserName = cliParser.getOptionValue("admin_user");
 		jbossAdminUserPassword = cliParser.getOptionValue("admin_password");
-		portOffset = Integer.parseInt(cliParser.getOptionValue("port_offset"));
+		portOffset = Integer.parseInt(cliParser.getOptionValue("port_offset",
+				"0"));
 		jbossDomainController = cliParser.getOptionValue("domain_controller");
+		jbossDomainControllerPort = Integer.parseInt(cliParser.getOptionValue(
+				"domain_controller_port",
+				String.valueOf(MANAGEMENT_NATIVE_PORT)));
 		jbossHostName = cliParser.getOptionValue("host");
 	}
 }
@@ -9,6 +9,8 @@ public interface JBossConstants {
 	
 	public static final String JBOSS_SYMLINK = "jboss";
 	
+	public static final String JBOSS_OVERLAY = "jboss-home";
+	
 	public static final String JBOSS_YARN = "jboss-yarn";
 	
 	public static final String  JBOSS_MGT_REALM = "ManagementRealm";
@@ -18,4 +20,30 @@ public interface JBossConstants {
 	public static final String JBOSS_ON_YARN_APP = "JBossApp.jar";
 	
 	public static final String COMMAND_CHAIN = " && ";
+	
+	public static final int PORT_OFFSET_STEP = 150;
+	
+	public static final int MANAGEMENT_NATIVE_PORT = 9999;
+	
+	public static final int MANAGEMENT_HTTP_PORT = 9990;
+	
+	public static final int HTTP_PORT = 8080;
+	
+	public static final int AJP_PORT = 8009;
+	
+	public static final String AM_RESIZE_PATH = "/ws/v1/resize";
+	
+	public static final String CONTROL_SECRET_FILE = "control-secret";
+	
+	public static final String CONTROL_SECRET_HEADER = "X-JBoss-YARN-Secret";
+	
+	public static final String REPORT_TOKEN_ENV = "JBOSS_YARN_REPORT_TOKEN";
+	
+	public static final String REPORT_TOKEN_HEADER = "X-JBoss-YARN-Token";
+	
+	public static final String AM_ENDPOINTS_PATH = "/ws/v1/endpoints";
+	
+	public static final String AM_METRICS_PATH = "/ws/v1/metrics";
+	
+	public static final String AM_STATUS_PATH = "/ws/v1/status";
 }
@@ -0,0 +1,309 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Main process of a JBoss container. Runs domain.sh or standalone.sh and
+ * restarts it in place when it fails, so a crashed JVM does not cost a new
+ * container, a new localization of the distribution and a new port offset.
+ *
+ * Restarts back off exponentially while JBoss keeps failing quickly. A run
+ * that lasted longer than the fast failure time resets the backoff. After
+ * the maximum number of fast failures in a row the supervisor exits with
+ * the last exit code and the container is given back to YARN. A clean exit
+ * of JBoss ends the supervisor as well. Every restart is reported to the
+ * application master, authenticated with the token the application master
+ * put into the container's environment.
+ *
+ * Only JDK classes are used, so the supervisor runs with nothing but the
+ * application jar on its class path.
+ *
+ * Usage: JBossSupervisor [--report url] [--container_id id]
+ * [--max_fast_failures n] [--fast_failure_time ms] command [args...]
+ */
+public class JBossSupervisor {
+
+	private static final Logger LOG = Logger.getLogger(JBossSupervisor.class
+			.getName());
+
+	private static final long INITIAL_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 30000;
+	private static final int REPORT_TIMEOUT_MS = 5000;
+	private static final long PUMP_DRAIN_MS = 5000;
+
+	private String reportUrl;
+	private String containerId = "";
+	private final String reportToken = System
+			.getenv(JBossConstants.REPORT_TOKEN_ENV);
+	private int maxFastFailures = 3;
+	private long fastFailureTimeMs = 60000;
+	private final List<String> command = new ArrayList<String>();
+
+	private volatile boolean stopping;
+	private Process process;
+
+	public static void main(String[] args) {
+		JBossSupervisor supervisor = new JBossSupervisor();
+		int exitCode;
+		try {
+			supervisor.init(args);
+			exitCode = supervisor.run();
+		} catch (IllegalArgumentException e) {
+			LOG.log(Level.SEVERE, "Invalid arguments", e);
+			exitCode = 2;
+		} catch (Throwable t) {
+			LOG.log(Level.SEVERE, "Error running JBoss", t);
+			exitCode = 1;
+		}
+		System.exit(exitCode);
+	}
+
+	/**
+	 * Parse the supervisor options. The first argument that is not an option
+	 * starts the supervised command.
+	 *
+	 * @param args
+	 *            Command line args
+	 */
+	public void init(String[] args) {
+		int i = 0;
+		while (i < args.length && args[i].startsWith("--")) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("No value for " + args[i]);
+			}
+			String name = args[i].substring(2);
+			String value = args[i + 1];
+			if ("report".equals(name)) {
+				reportUrl = value;
+			} else if ("container_id".equals(name)) {
+				containerId = value;
+			} else if ("max_fast_failures".equals(name)) {
+				maxFastFailures = Integer.parseInt(value);
+			} else if ("fast_failure_time".equals(name)) {
+				fastFailureTimeMs = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			i += 2;
+		}
+		command.addAll(Arrays.asList(args).subList(i, args.length));
+		if (command.isEmpty()) {
+			throw new IllegalArgumentException("No command to supervise");
+		}
+		if (maxFastFailures < 1) {
+			throw new IllegalArgumentException(
+					"Cannot supervise with no fast failures, specified="
+							+ maxFastFailures);
+		}
+	}
+
+	/**
+	 * Run the command until it exits cleanly, fails too often in a row, or
+	 * the supervisor is stopped.
+	 *
+	 * @return Exit code for the container
+	 * @throws IOException
+	 *             If the command cannot be started
+	 * @throws InterruptedException
+	 */
+	public int run() throws IOException, InterruptedException {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				synchronized (JBossSupervisor.this) {
+					stopping = true;
+					if (process != null) {
+						process.destroy();
+					}
+				}
+			}
+		});
+
+		int restarts = 0;
+		int fastFailures = 0;
+		while (true) {
+			long startTime = System.currentTimeMillis();
+			int exitCode = runOnce();
+			long uptimeMs = System.currentTimeMillis() - startTime;
+			if (stopping) {
+				return exitCode;
+			}
+			if (exitCode == 0) {
+				LOG.info("JBoss exited cleanly after " + uptimeMs + " ms");
+				return 0;
+			}
+			if (uptimeMs < fastFailureTimeMs) {
+				fastFailures++;
+			} else {
+				fastFailures = 0;
+			}
+			String cause = describe(exitCode);
+			if (fastFailures >= maxFastFailures) {
+				LOG.severe("JBoss failed " + fastFailures
+						+ " times in a row, last with " + cause
+						+ ", giving up the container");
+				report("give_up", exitCode, cause, uptimeMs, restarts);
+				return exitCode;
+			}
+			long backoffMs = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS
+					<< Math.min(fastFailures, 16));
+			restarts++;
+			LOG.warning("JBoss failed with " + cause + " after " + uptimeMs
+					+ " ms, restart " + restarts + " in " + backoffMs + " ms");
+			report("restart", exitCode, cause, uptimeMs, restarts);
+			Thread.sleep(backoffMs);
+			if (stopping) {
+				return exitCode;
+			}
+		}
+	}
+
+	private int runOnce() throws IOException, InterruptedException {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		// Makes domain.sh and standalone.sh pass signals on to the JVM
+		builder.environment().put("LAUNCH_JBOSS_IN_BACKGROUND", "true");
+		builder.environment().remove(JBossConstants.REPORT_TOKEN_ENV);
+		Process started;
+		synchronized (this) {
+			if (stopping) {
+				return 143;
+			}
+			started = builder.start();
+			process = started;
+		}
+		started.getOutputStream().close();
+		Thread out = pump(started.getInputStream(), System.out);
+		Thread err = pump(started.getErrorStream(), System.err);
+		int exitCode = started.waitFor();
+		// Orphaned JBoss processes may keep the pipes open
+		out.join(PUMP_DRAIN_MS);
+		err.join(PUMP_DRAIN_MS);
+		return exitCode;
+	}
+
+	private static Thread pump(final InputStream in, final PrintStream out) {
+		Thread pump = new Thread("JBossSupervisor pump") {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[8192];
+				try {
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// process gone
+				} finally {
+					Util.closeCloseable(in);
+				}
+			}
+		};
+		pump.setDaemon(true);
+		pump.start();
+		return pump;
+	}
+
+	/**
+	 * @return Readable cause of an exit code, naming the signal of a killed
+	 *         process
+	 */
+	static String describe(int exitCode) {
+		if (exitCode <= 128) {
+			return "exit code " + exitCode;
+		}
+		int signal = exitCode - 128;
+		switch (signal) {
+		case 6:
+			return "exit code " + exitCode + " (SIGABRT, JVM crash)";
+		case 9:
+			return "exit code " + exitCode + " (SIGKILL, possibly out of memory)";
+		case 11:
+			return "exit code " + exitCode + " (SIGSEGV, JVM crash)";
+		case 15:
+			return "exit code " + exitCode + " (SIGTERM)";
+		default:
+			return "exit code " + exitCode + " (signal " + signal + ")";
+		}
+	}
+
+	/**
+	 * Tell the application master about a restart. Failures are only logged,
+	 * the AM being unreachable must not stop the restart.
+	 */
+	private void report(String event, int exitCode, String cause,
+			long uptimeMs, int restarts) {
+		if (reportUrl == null) {
+			return;
+		}
+		HttpURLConnection connection = null;
+		try {
+			String body = "container=" + encode(containerId) + "&event="
+					+ encode(event) + "&exit_code=" + exitCode + "&cause="
+					+ encode(cause) + "&uptime=" + uptimeMs + "&restarts="
+					+ restarts;
+			connection = (HttpURLConnection) new URL(reportUrl)
+					.openConnection();
+			connection.setConnectTimeout(REPORT_TIMEOUT_MS);
+			connection.setReadTimeout(REPORT_TIMEOUT_MS);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type",
+					"application/x-www-form-urlencoded");
+			if (reportToken != null) {
+				connection.setRequestProperty(
+						JBossConstants.REPORT_TOKEN_HEADER, reportToken);
+			}
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				Util.closeCloseable(out);
+			}
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				LOG.warning("Application master answered restart report with "
+						+ connection.getResponseCode());
+			}
+		} catch (IOException e) {
+			LOG.warning("Problem reporting restart to " + reportUrl + ": "
+					+ e.getMessage());
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static String encode(String value) throws IOException {
+		return URLEncoder.encode(value, "UTF-8");
+	}
+}
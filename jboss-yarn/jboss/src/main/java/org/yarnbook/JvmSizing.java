@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.Resource;
+
+/**
+ * Splits the memory of one container between the three JVMs of a JBoss host
+ * in domain mode: the process controller, the host controller and the
+ * server.
+ *
+ * A share of the container is kept back for memory the JVMs allocate
+ * outside of any limit that can be set. The two controllers get small fixed
+ * footprints, the host controller growing a little with the container. The
+ * server gets the rest: permanent generation, direct memory and thread
+ * stacks are sized first and whatever remains becomes its heap. The garbage
+ * collector and its thread count follow from the heap size and the number
+ * of virtual cores.
+ *
+ * In standalone mode there are no controllers and the server gets
+ * everything but the reserve. A container run by the {@link JBossSupervisor}
+ * also sets aside the small JVM of the supervisor.
+ */
+public class JvmSizing {
+
+	private static final Logger LOG = Logger.getLogger(JvmSizing.class
+			.getName());
+
+	/** Share of the container kept back for untracked native memory. */
+	private static final double RESERVE_FRACTION = 0.1;
+	private static final int MIN_RESERVE_MB = 64;
+
+	/** Code cache, GC structures and other fixed costs of any JVM. */
+	private static final int JVM_BASE_MB = 32;
+
+	private static final int MIN_SERVER_HEAP_MB = 64;
+	private static final int SERVER_THREADS = 200;
+	private static final int SERVER_STACK_KB = 512;
+	private static final int CONTROLLER_STACK_KB = 256;
+
+	private static final int CMS_HEAP_MB = 1024;
+
+	private static final String SERIAL = "-XX:+UseSerialGC";
+	private static final String PARALLEL = "-XX:+UseParallelGC";
+	private static final String CMS = "-XX:+UseConcMarkSweepGC";
+
+	/**
+	 * Memory settings of one JVM.
+	 */
+	public static class Jvm {
+
+		private final String name;
+		private final int heapMb;
+		private final int permGenMb;
+		private final int directMb;
+		private final int stackKb;
+		private final int threads;
+		private final String gc;
+		private final int gcThreads;
+
+		Jvm(String name, int heapMb, int permGenMb, int directMb,
+				int stackKb, int threads, String gc, int gcThreads) {
+			this.name = name;
+			this.heapMb = heapMb;
+			this.permGenMb = permGenMb;
+			this.directMb = directMb;
+			this.stackKb = stackKb;
+			this.threads = threads;
+			this.gc = gc;
+			this.gcThreads = gcThreads;
+		}
+
+		public int getHeapMb() {
+			return heapMb;
+		}
+
+		public int getPermGenMb() {
+			return permGenMb;
+		}
+
+		public int getDirectMb() {
+			return directMb;
+		}
+
+		public int getStackKb() {
+			return stackKb;
+		}
+
+		/**
+		 * @return Garbage collector flag, e.g. -XX:+UseSerialGC
+		 */
+		public String getGc() {
+			return gc;
+		}
+
+		/**
+		 * @return Parallel GC threads, or 0 for a serial collector
+		 */
+		public int getGcThreads() {
+			return gcThreads;
+		}
+
+		/**
+		 * @return Expected resident size of the JVM in MB
+		 */
+		public int getFootprintMb() {
+			return heapMb + permGenMb + directMb + threads * stackKb / 1024
+					+ JVM_BASE_MB;
+		}
+
+		/**
+		 * @return Options not covered by heap, permgen and stack settings
+		 */
+		public List<String> getExtraOptions() {
+			List<String> options = new ArrayList<String>();
+			options.add("-XX:MaxDirectMemorySize=" + directMb + "m");
+			options.add(gc);
+			if (gcThreads > 0) {
+				options.add("-XX:ParallelGCThreads=" + gcThreads);
+			}
+			if (CMS.equals(gc)) {
+				options.add("-XX:ConcGCThreads="
+						+ Math.max(1, (gcThreads + 3) / 4));
+			}
+			return Collections.unmodifiableList(options);
+		}
+
+		/**
+		 * @return All settings as JVM command line options
+		 */
+		public String getJavaOpts() {
+			StringBuilder opts = new StringBuilder();
+			opts.append("-Xms").append(heapMb).append("m -Xmx")
+					.append(heapMb).append("m -XX:MaxPermSize=")
+					.append(permGenMb).append("m -Xss").append(stackKb)
+					.append("k");
+			for (String option : getExtraOptions()) {
+				opts.append(' ').append(option);
+			}
+			return opts.toString();
+		}
+
+		@Override
+		public String toString() {
+			return name + "[heap=" + heapMb + "m, permgen=" + permGenMb
+					+ "m, direct=" + directMb + "m, stack=" + stackKb
+					+ "k, " + gc
+					+ (gcThreads > 0 ? ", gcThreads=" + gcThreads : "")
+					+ "]";
+		}
+	}
+
+	private final int containerMb;
+	private final int virtualCores;
+	private final int reserveMb;
+	private final Jvm processController;
+	private final Jvm hostController;
+	private final Jvm server;
+	private final Jvm supervisor;
+
+	/**
+	 * Size the JVMs of one container.
+	 *
+	 * @param capability
+	 *            Resource granted to the container
+	 * @param mode
+	 *            How JBoss runs in the container
+	 * @param supervised
+	 *            Whether a supervisor JVM runs JBoss in the container
+	 */
+	public JvmSizing(Resource capability, LaunchMode mode, boolean supervised) {
+		this.containerMb = capability.getMemory();
+		this.virtualCores = Math.max(1, capability.getVirtualCores());
+
+		reserveMb = Math.max(MIN_RESERVE_MB,
+				(int) (containerMb * RESERVE_FRACTION));
+
+		int available = containerMb - reserveMb;
+		if (mode == LaunchMode.DOMAIN) {
+			processController = new Jvm("process-controller", 32, 32, 8,
+					CONTROLLER_STACK_KB, 16, SERIAL, 0);
+			hostController = new Jvm("host-controller", clamp(
+					containerMb / 16, 64, 256), 96, 16, CONTROLLER_STACK_KB,
+					64, SERIAL, 0);
+			available -= processController.getFootprintMb()
+					+ hostController.getFootprintMb();
+		} else {
+			processController = null;
+			hostController = null;
+		}
+
+		if (supervised) {
+			supervisor = new Jvm("supervisor", 16, 16, 1,
+					CONTROLLER_STACK_KB, 8, SERIAL, 0);
+			available -= supervisor.getFootprintMb();
+		} else {
+			supervisor = null;
+		}
+
+		int permGenMb = clamp(available / 5, 96, 256);
+		int directMb = clamp(available / 10, 32, 512);
+		int heapMb = available - permGenMb - directMb - JVM_BASE_MB
+				- SERVER_THREADS * SERVER_STACK_KB / 1024;
+		if (heapMb < MIN_SERVER_HEAP_MB) {
+			LOG.warning("Container of " + containerMb
+					+ " MB is too small for a JBoss host, the server heap"
+					+ " is raised to " + MIN_SERVER_HEAP_MB + " MB");
+			heapMb = MIN_SERVER_HEAP_MB;
+		}
+
+		String gc;
+		if (virtualCores == 1) {
+			gc = SERIAL;
+		} else if (heapMb >= CMS_HEAP_MB) {
+			gc = CMS;
+		} else {
+			gc = PARALLEL;
+		}
+		server = new Jvm("server", heapMb, permGenMb, directMb,
+				SERVER_STACK_KB, SERVER_THREADS, gc, gc == SERIAL ? 0
+						: virtualCores);
+	}
+
+	public int getContainerMb() {
+		return containerMb;
+	}
+
+	public int getVirtualCores() {
+		return virtualCores;
+	}
+
+	/**
+	 * @return Settings of the process controller, or null in standalone mode
+	 */
+	public Jvm getProcessController() {
+		return processController;
+	}
+
+	/**
+	 * @return Settings of the host controller, or null in standalone mode
+	 */
+	public Jvm getHostController() {
+		return hostController;
+	}
+
+	public Jvm getServer() {
+		return server;
+	}
+
+	/**
+	 * @return Settings of the supervisor, or null if JBoss is not supervised
+	 */
+	public Jvm getSupervisor() {
+		return supervisor;
+	}
+
+	/**
+	 * @return Expected resident size of all JVMs in MB
+	 */
+	public int getFootprintMb() {
+		int footprint = server.getFootprintMb();
+		if (supervisor != null) {
+			footprint += supervisor.getFootprintMb();
+		}
+		if (processController != null) {
+			footprint += processController.getFootprintMb()
+					+ hostController.getFootprintMb();
+		}
+		return footprint;
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	@Override
+	public String toString() {
+		return "container=" + containerMb + "m/" + virtualCores
+				+ " vcores, reserve=" + reserveMb + "m, footprint="
+				+ getFootprintMb() + "m, "
+				+ (processController == null ? "" : processController + ", "
+						+ hostController + ", ") + server
+				+ (supervisor == null ? "" : ", " + supervisor);
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Lock-free histogram of durations in milliseconds.
+ *
+ * Bucket i counts the durations from 2^(i-1) up to 2^i - 1 ms, bucket 0 the
+ * durations of 0 ms, so recording is a few atomic increments and the
+ * histogram has a fixed size. Percentiles are the upper bound of the bucket
+ * they fall in, capped at the largest duration recorded, so they are at most
+ * twice the true value.
+ */
+public class LatencyHistogram {
+
+	private static final int NUM_BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMs = new AtomicLong();
+	private final AtomicLong maxMs = new AtomicLong();
+
+	/**
+	 * @param durationMs
+	 *            Duration to record, negative durations count as 0
+	 */
+	public void record(long durationMs) {
+		long ms = Math.max(0, durationMs);
+		int bucket = Math.min(NUM_BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(ms));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalMs.addAndGet(ms);
+		long max;
+		while ((max = maxMs.get()) < ms && !maxMs.compareAndSet(max, ms)) {
+			// retry
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return Mean duration in ms, 0 if nothing was recorded
+	 */
+	public long getMeanMs() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMs.get() / n;
+	}
+
+	public long getMaxMs() {
+		return maxMs.get();
+	}
+
+	/**
+	 * @param fraction
+	 *            Percentile as a fraction, e.g. 0.99
+	 * @return Duration in ms that the fraction of the recorded durations do
+	 *         not exceed, 0 if nothing was recorded
+	 */
+	public long getPercentileMs(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				long upper = i == 0 ? 0 : (1L << i) - 1;
+				return Math.min(upper, maxMs.get());
+			}
+		}
+		return maxMs.get();
+	}
+
+	/**
+	 * @param node
+	 *            Node to add the count, mean, percentiles and maximum to
+	 */
+	public void toJson(ObjectNode node) {
+		node.put("count", getCount());
+		node.put("meanMs", getMeanMs());
+		node.put("p50Ms", getPercentileMs(0.5));
+		node.put("p90Ms", getPercentileMs(0.9));
+		node.put("p99Ms", getPercentileMs(0.99));
+		node.put("maxMs", getMaxMs());
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", meanMs=" + getMeanMs() + ", p50Ms="
+				+ getPercentileMs(0.5) + ", p99Ms=" + getPercentileMs(0.99)
+				+ ", maxMs=" + getMaxMs();
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+/**
+ * How JBoss AS runs in each container.
+ *
+ * In DOMAIN mode every container runs domain.sh: a process controller, a
+ * host controller and a server, managed by a domain controller in the first
+ * container. In STANDALONE mode every container runs a single standalone.sh
+ * server and the application master alone keeps track of the servers.
+ */
+public enum LaunchMode {
+	DOMAIN, STANDALONE;
+
+	public static LaunchMode parse(String value) {
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown launch mode " + value
+					+ ", expected domain or standalone");
+		}
+	}
+}
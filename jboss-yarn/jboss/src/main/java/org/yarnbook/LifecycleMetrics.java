@@ -0,0 +1,376 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Counts and times the steps of the container lifecycle: the ask, the
+ * allocation, the start request sent to the NodeManager, the start
+ * confirmed by it, JBoss answering its health probe, and the exit.
+ *
+ * Asks are not tied to containers, so an allocation is timed from the
+ * oldest outstanding ask. Each phase between two steps is a
+ * {@link LatencyHistogram}. Time to ready, from the ask to JBoss answering,
+ * is also kept separately for the servers asked for since the last scale
+ * event, i.e. the start of the application or a resize. The metrics are a
+ * Hadoop metrics2 source and are served as JSON by the application master.
+ * Without health probing JBoss is never seen ready.
+ */
+public class LifecycleMetrics implements MetricsSource {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	static final String RECORD = "JBossLifecycle";
+	static final String CONTEXT = "jboss";
+
+	/**
+	 * Timed phases of the lifecycle.
+	 */
+	public enum Phase {
+		ALLOCATION("Ask to allocation"), LAUNCH(
+				"Allocation to start request sent to the NodeManager"), START(
+				"Start request to start confirmed by the NodeManager"), READY(
+				"Start confirmed to JBoss answering its health probe"), TIME_TO_READY(
+				"Ask to JBoss answering its health probe"), UPTIME(
+				"Start confirmed to exit");
+
+		private final String description;
+
+		Phase(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * @return Camel case name for metrics and JSON, e.g. TimeToReady
+		 */
+		public String getMetricName() {
+			StringBuilder name = new StringBuilder();
+			for (String word : name().split("_")) {
+				name.append(word.charAt(0)).append(
+						word.substring(1).toLowerCase());
+			}
+			return name.toString();
+		}
+	}
+
+	/**
+	 * Times of the steps one container went through, 0 until reached.
+	 */
+	private static class Timeline {
+		volatile long askTime;
+		volatile long allocatedTime;
+		volatile long launchTime;
+		volatile long startTime;
+		volatile long readyTime;
+		volatile boolean sinceScale;
+	}
+
+	private final AllocationTracker allocation;
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(
+			Phase.class);
+	private final ConcurrentMap<ContainerId, Timeline> timelines = new ConcurrentHashMap<ContainerId, Timeline>();
+	private final Deque<Long> askTimes = new ArrayDeque<Long>();
+
+	private volatile LatencyHistogram scaleTimeToReady = new LatencyHistogram();
+	private volatile long scaleTime = System.currentTimeMillis();
+
+	private final AtomicLong numAsks = new AtomicLong();
+	private final AtomicLong numAllocations = new AtomicLong();
+	private final AtomicLong numLaunches = new AtomicLong();
+	private final AtomicLong numLaunchFailures = new AtomicLong();
+	private final AtomicLong numStarts = new AtomicLong();
+	private final AtomicLong numReady = new AtomicLong();
+	private final AtomicLong numExits = new AtomicLong();
+	private final AtomicLong numFailedExits = new AtomicLong();
+	private final AtomicLong numRestarts = new AtomicLong();
+
+	/**
+	 * @param allocation
+	 *            Servers whose states are reported as gauges
+	 */
+	public LifecycleMetrics(AllocationTracker allocation) {
+		this.allocation = allocation;
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Record containers asked for.
+	 */
+	public void asked(int numContainers) {
+		long now = System.currentTimeMillis();
+		synchronized (askTimes) {
+			for (int i = 0; i < numContainers; i++) {
+				askTimes.addLast(now);
+			}
+		}
+		numAsks.addAndGet(numContainers);
+	}
+
+	/**
+	 * Forget the newest asks, for servers retired before they got a
+	 * container.
+	 */
+	public void cancelled(int numContainers) {
+		synchronized (askTimes) {
+			for (int i = 0; i < numContainers && !askTimes.isEmpty(); i++) {
+				askTimes.removeLast();
+			}
+		}
+	}
+
+	/**
+	 * Record a container allocated to a server.
+	 */
+	public void allocated(ContainerId containerId) {
+		Timeline timeline = new Timeline();
+		timeline.allocatedTime = System.currentTimeMillis();
+		Long askTime;
+		synchronized (askTimes) {
+			askTime = askTimes.pollFirst();
+		}
+		timeline.askTime = askTime == null ? timeline.allocatedTime : askTime;
+		timeline.sinceScale = timeline.askTime >= scaleTime;
+		timelines.put(containerId, timeline);
+		numAllocations.incrementAndGet();
+		phases.get(Phase.ALLOCATION).record(
+				timeline.allocatedTime - timeline.askTime);
+	}
+
+	/**
+	 * Record the start request of a container sent to its NodeManager.
+	 */
+	public void launched(ContainerId containerId) {
+		numLaunches.incrementAndGet();
+		Timeline timeline = timelines.get(containerId);
+		if (timeline != null) {
+			timeline.launchTime = System.currentTimeMillis();
+			phases.get(Phase.LAUNCH).record(
+					timeline.launchTime - timeline.allocatedTime);
+		}
+	}
+
+	/**
+	 * Record a container started by its NodeManager.
+	 */
+	public void started(ContainerId containerId) {
+		numStarts.incrementAndGet();
+		Timeline timeline = timelines.get(containerId);
+		if (timeline != null && timeline.launchTime > 0) {
+			timeline.startTime = System.currentTimeMillis();
+			phases.get(Phase.START).record(
+					timeline.startTime - timeline.launchTime);
+		}
+	}
+
+	/**
+	 * Record the JBoss server of a container answering for the first time.
+	 */
+	public void ready(ContainerId containerId) {
+		Timeline timeline = timelines.get(containerId);
+		if (timeline == null || timeline.startTime == 0
+				|| timeline.readyTime > 0) {
+			return;
+		}
+		numReady.incrementAndGet();
+		timeline.readyTime = System.currentTimeMillis();
+		phases.get(Phase.READY).record(
+				timeline.readyTime - timeline.startTime);
+		phases.get(Phase.TIME_TO_READY).record(
+				timeline.readyTime - timeline.askTime);
+		if (timeline.sinceScale) {
+			scaleTimeToReady.record(timeline.readyTime - timeline.askTime);
+		}
+	}
+
+	/**
+	 * Record a container that could not be launched.
+	 */
+	public void launchFailed(ContainerId containerId) {
+		numLaunchFailures.incrementAndGet();
+		timelines.remove(containerId);
+	}
+
+	/**
+	 * Record a container that exited.
+	 * 
+	 * @param failed
+	 *            Whether the container exited with an error
+	 */
+	public void completed(ContainerId containerId, boolean failed) {
+		numExits.incrementAndGet();
+		if (failed) {
+			numFailedExits.incrementAndGet();
+		}
+		Timeline timeline = timelines.remove(containerId);
+		if (timeline != null && timeline.startTime > 0) {
+			phases.get(Phase.UPTIME).record(
+					System.currentTimeMillis() - timeline.startTime);
+		}
+	}
+
+	/**
+	 * Record a JBoss server restarted in place.
+	 */
+	public void restarted() {
+		numRestarts.incrementAndGet();
+	}
+
+	/**
+	 * Start timing a new scale event.
+	 */
+	public void scaleEvent() {
+		scaleTime = System.currentTimeMillis();
+		scaleTimeToReady = new LatencyHistogram();
+	}
+
+	public LatencyHistogram getHistogram(Phase phase) {
+		return phases.get(phase);
+	}
+
+	/**
+	 * @return Time to ready of the servers asked for since the last scale
+	 *         event
+	 */
+	public LatencyHistogram getScaleTimeToReady() {
+		return scaleTimeToReady;
+	}
+
+	public long getScaleTime() {
+		return scaleTime;
+	}
+
+	public long getNumExits() {
+		return numExits.get();
+	}
+
+	public long getNumFailedExits() {
+		return numFailedExits.get();
+	}
+
+	public long getNumLaunchFailures() {
+		return numLaunchFailures.get();
+	}
+
+	public void getMetrics(MetricsCollector collector, boolean all) {
+		MetricsRecordBuilder record = collector.addRecord(RECORD).setContext(
+				CONTEXT);
+		record.addCounter(Interns.info("Asks", "Containers asked for"),
+				numAsks.get());
+		record.addCounter(
+				Interns.info("Allocations", "Containers allocated to servers"),
+				numAllocations.get());
+		record.addCounter(Interns.info("Launches",
+				"Start requests sent to NodeManagers"), numLaunches.get());
+		record.addCounter(Interns.info("LaunchFailures",
+				"Containers that could not be launched"), numLaunchFailures
+				.get());
+		record.addCounter(
+				Interns.info("Starts", "Containers started by NodeManagers"),
+				numStarts.get());
+		record.addCounter(Interns.info("Ready", "JBoss servers that answered"),
+				numReady.get());
+		record.addCounter(Interns.info("Exits", "Containers that exited"),
+				numExits.get());
+		record.addCounter(Interns.info("FailedExits",
+				"Containers that exited with an error"), numFailedExits.get());
+		record.addCounter(Interns.info("Restarts",
+				"JBoss servers restarted in place"), numRestarts.get());
+		record.addGauge(Interns.info("TargetServers", "Servers wanted"),
+				allocation.getTargetCount());
+		record.addGauge(Interns.info("RunningServers",
+				"Servers with a started container"), allocation
+				.getCount(AllocationTracker.State.RUNNING));
+		for (Phase phase : Phase.values()) {
+			LatencyHistogram histogram = phases.get(phase);
+			String name = phase.getMetricName();
+			String description = phase.getDescription();
+			record.addCounter(Interns.info(name + "NumOps", description
+					+ ", count"), histogram.getCount());
+			record.addGauge(Interns.info(name + "AvgTime", description
+					+ ", mean ms"), histogram.getMeanMs());
+			record.addGauge(Interns.info(name + "50thPercentileTime",
+					description + ", median ms"), histogram
+					.getPercentileMs(0.5));
+			record.addGauge(Interns.info(name + "99thPercentileTime",
+					description + ", 99th percentile ms"), histogram
+					.getPercentileMs(0.99));
+			record.addGauge(Interns.info(name + "MaxTime", description
+					+ ", max ms"), histogram.getMaxMs());
+		}
+	}
+
+	/**
+	 * @return Counters and phase histograms as JSON
+	 */
+	public ObjectNode toJson() {
+		ObjectNode node = MAPPER.createObjectNode();
+		ObjectNode counters = node.putObject("counters");
+		counters.put("asks", numAsks.get());
+		counters.put("allocations", numAllocations.get());
+		counters.put("launches", numLaunches.get());
+		counters.put("launchFailures", numLaunchFailures.get());
+		counters.put("starts", numStarts.get());
+		counters.put("ready", numReady.get());
+		counters.put("exits", numExits.get());
+		counters.put("failedExits", numFailedExits.get());
+		counters.put("restarts", numRestarts.get());
+		ObjectNode phaseNodes = node.putObject("phases");
+		for (Phase phase : Phase.values()) {
+			phases.get(phase).toJson(phaseNodes.putObject(phase.getMetricName()));
+		}
+		ObjectNode scale = node.putObject("lastScale");
+		scale.put("time", scaleTime);
+		scaleTimeToReady.toJson(scale.putObject("TimeToReady"));
+		return node;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder phasesText = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			phasesText.append(", ").append(phase.getMetricName()).append("=[")
+					.append(phases.get(phase)).append("]");
+		}
+		return "asks=" + numAsks.get() + ", allocations="
+				+ numAllocations.get() + ", starts=" + numStarts.get()
+				+ ", ready=" + numReady.get() + ", exits=" + numExits.get()
+				+ ", failedExits=" + numFailedExits.get() + phasesText;
+	}
+}
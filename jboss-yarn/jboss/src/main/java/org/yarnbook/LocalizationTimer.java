@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Measures how long containers take from the start request until their
+ * JBoss management port accepts connections.
+ *
+ * The NodeManager does not report when localization of a container ends, so
+ * the time is split by whether the node was cold, i.e. had to unpack the
+ * JBoss distribution for this container, or warm because an earlier
+ * container of the application already had it localized there. The
+ * difference between the two averages is the cost of localization.
+ */
+public class LocalizationTimer {
+
+	private static final Logger LOG = Logger.getLogger(LocalizationTimer.class
+			.getName());
+
+	private static final long PROBE_INTERVAL_MS = 500;
+	private static final int PROBE_TIMEOUT_MS = 250;
+	private static final long MAX_WAIT_MS = 600000;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Set<String> warmHosts = new HashSet<String>();
+	private final Map<ContainerId, Long> startTimes = new HashMap<ContainerId, Long>();
+	private final Map<ContainerId, Boolean> coldStarts = new HashMap<ContainerId, Boolean>();
+
+	private int numCold;
+	private long totalColdMs;
+	private int numWarm;
+	private long totalWarmMs;
+
+	/**
+	 * @param scheduler
+	 *            Runs the probes
+	 */
+	public LocalizationTimer(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Record that a container is about to be started.
+	 *
+	 * @param binding
+	 *            Ports of the container's JBoss server
+	 */
+	public synchronized void starting(PortOffsetAllocator.Binding binding) {
+		startTimes.put(binding.getContainerId(), System.currentTimeMillis());
+		coldStarts.put(binding.getContainerId(),
+				warmHosts.add(binding.getHost()));
+	}
+
+	/**
+	 * Start probing a container the NodeManager accepted.
+	 *
+	 * @param binding
+	 *            Ports of the container's JBoss server
+	 */
+	public void started(final PortOffsetAllocator.Binding binding) {
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				probe(binding);
+			}
+		}, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop timing a container that is gone.
+	 */
+	public synchronized void completed(ContainerId containerId) {
+		startTimes.remove(containerId);
+		coldStarts.remove(containerId);
+	}
+
+	/**
+	 * @return Average start time of containers on cold nodes in ms, or -1
+	 */
+	public synchronized long getAverageColdStartMs() {
+		return numCold == 0 ? -1 : totalColdMs / numCold;
+	}
+
+	/**
+	 * @return Average start time of containers on warm nodes in ms, or -1
+	 */
+	public synchronized long getAverageWarmStartMs() {
+		return numWarm == 0 ? -1 : totalWarmMs / numWarm;
+	}
+
+	private void probe(PortOffsetAllocator.Binding binding) {
+		boolean listening = EndpointProbe.isListening(binding.getHost(),
+				binding.getManagementNativePort(), PROBE_TIMEOUT_MS);
+		synchronized (this) {
+			Long startTime = startTimes.get(binding.getContainerId());
+			if (startTime == null) {
+				return;
+			}
+			long elapsed = System.currentTimeMillis() - startTime;
+			if (!listening) {
+				if (elapsed < MAX_WAIT_MS) {
+					started(binding);
+				} else {
+					completed(binding.getContainerId());
+				}
+				return;
+			}
+			boolean cold = coldStarts.get(binding.getContainerId());
+			if (cold) {
+				numCold++;
+				totalColdMs += elapsed;
+			} else {
+				numWarm++;
+				totalWarmMs += elapsed;
+			}
+			completed(binding.getContainerId());
+			LOG.info("Container " + binding.getContainerId() + " on "
+					+ (cold ? "cold" : "warm") + " node " + binding.getHost()
+					+ " reachable " + elapsed + " ms after start. " + this);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "coldStarts=" + numCold + ", avgColdMs="
+				+ getAverageColdStartMs() + ", warmStarts=" + numWarm
+				+ ", avgWarmMs=" + getAverageWarmStartMs();
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.PasswordAuthentication;
+import java.net.URL;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Runs operations of the JBoss HTTP management API of the servers.
+ *
+ * Operations are the detyped JSON requests of the management model, posted
+ * to /management. The API uses digest authentication against the management
+ * realm, answered with the initial administrator user. The credentials are
+ * installed as the JVM's default {@link Authenticator}, which is how
+ * HttpURLConnection supports digest authentication. They are only handed to
+ * the management HTTP port of a container that currently has a binding, never
+ * to any other server asking for credentials.
+ *
+ * In domain mode a server is reached through the host controller in its
+ * container, so addresses of server resources start with the host and the
+ * server, see {@link #serverAddress(LaunchMode, boolean, ContainerId)}.
+ */
+public class ManagementClient {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final int timeoutMs;
+
+	/**
+	 * @param ports
+	 *            Bindings of the running containers, whose management ports
+	 *            are the only ones given the credentials
+	 * @param adminUser
+	 *            Management user
+	 * @param adminPassword
+	 *            Password of the management user
+	 * @param timeoutMs
+	 *            Connect and read timeout of each operation
+	 */
+	public ManagementClient(final PortOffsetAllocator ports,
+			final String adminUser, final String adminPassword, int timeoutMs) {
+		this.timeoutMs = timeoutMs;
+		Authenticator.setDefault(new Authenticator() {
+			@Override
+			protected PasswordAuthentication getPasswordAuthentication() {
+				if (getRequestorType() != RequestorType.SERVER
+						|| !isManagementPort(ports, getRequestingHost(),
+								getRequestingPort())) {
+					return null;
+				}
+				return new PasswordAuthentication(adminUser, adminPassword
+						.toCharArray());
+			}
+		});
+	}
+
+	/**
+	 * @return true if a container with a binding serves its management HTTP
+	 *         API on the host and port
+	 */
+	private static boolean isManagementPort(PortOffsetAllocator ports,
+			String host, int port) {
+		if (host == null) {
+			return false;
+		}
+		for (PortOffsetAllocator.Binding binding : ports.getBindings()
+				.values()) {
+			if (binding.getManagementHttpPort() == port
+					&& host.equalsIgnoreCase(binding.getHost())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start an operation request.
+	 *
+	 * @param name
+	 *            Operation name, e.g. read-attribute
+	 * @param address
+	 *            Address of the resource
+	 * @return Request to add parameters to
+	 */
+	public static ObjectNode operation(String name, ArrayNode address) {
+		ObjectNode operation = MAPPER.createObjectNode();
+		operation.put("operation", name);
+		operation.put("address", address);
+		return operation;
+	}
+
+	/**
+	 * Address of a resource of the JBoss server in a container.
+	 *
+	 * @param mode
+	 *            How JBoss runs in the container
+	 * @param controller
+	 *            Whether the container runs the domain controller
+	 * @param containerId
+	 *            Container, which is also the server's name
+	 * @param path
+	 *            Type and name pairs of the resource below the server
+	 * @return Address for {@link #operation(String, ArrayNode)}
+	 */
+	public static ArrayNode serverAddress(LaunchMode mode, boolean controller,
+			ContainerId containerId, String... path) {
+		ArrayNode address = MAPPER.createArrayNode();
+		if (mode == LaunchMode.DOMAIN) {
+			address.addObject().put("host",
+					controller ? Util.MASTER_USER : Util.SLAVE_USER);
+			address.addObject().put("server", containerId.toString());
+		}
+		for (int i = 0; i + 1 < path.length; i += 2) {
+			address.addObject().put(path[i], path[i + 1]);
+		}
+		return address;
+	}
+
+	/**
+	 * Run an operation.
+	 *
+	 * @param binding
+	 *            Ports of the container whose management API runs it
+	 * @param operation
+	 *            Operation request
+	 * @return Result of the operation
+	 * @throws IOException
+	 *             If the API cannot be reached or the operation failed
+	 */
+	public JsonNode execute(PortOffsetAllocator.Binding binding,
+			ObjectNode operation) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http",
+				binding.getHost(), binding.getManagementHttpPort(),
+				"/management").openConnection();
+		try {
+			connection.setConnectTimeout(timeoutMs);
+			connection.setReadTimeout(timeoutMs);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			OutputStream out = connection.getOutputStream();
+			try {
+				MAPPER.writeValue(out, operation);
+			} finally {
+				Util.closeCloseable(out);
+			}
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			if (in == null) {
+				throw new IOException("Management API of " + binding
+						+ " answered " + status);
+			}
+			JsonNode response;
+			try {
+				response = MAPPER.readTree(in);
+			} finally {
+				Util.closeCloseable(in);
+			}
+			if (!"success".equals(response.path("outcome").getTextValue())) {
+				throw new IOException("Operation " + operation + " on "
+						+ binding + " failed: "
+						+ response.path("failure-description"));
+			}
+			return response.path("result");
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * @param mode
+	 *            How JBoss runs in the container
+	 * @param controller
+	 *            Whether the container runs the domain controller
+	 * @param binding
+	 *            Ports of the container
+	 * @return Active HTTP sessions over all deployments of the container's
+	 *         server
+	 * @throws IOException
+	 *             If the sessions cannot be read
+	 */
+	public int getActiveSessions(LaunchMode mode, boolean controller,
+			PortOffsetAllocator.Binding binding) throws IOException {
+		ObjectNode operation = operation("read-attribute", serverAddress(mode,
+				controller, binding.getContainerId(), "deployment", "*",
+				"subsystem", "web"));
+		operation.put("name", "active-sessions");
+		int sessions = 0;
+		for (JsonNode deployment : execute(binding, operation)) {
+			sessions += deployment.path("result").getIntValue();
+		}
+		return sessions;
+	}
+
+	/**
+	 * @param mode
+	 *            How JBoss runs in the container
+	 * @param controller
+	 *            Whether the container runs the domain controller
+	 * @param binding
+	 *            Ports of the container
+	 * @return Requests served so far over all web connectors of the
+	 *         container's server
+	 * @throws IOException
+	 *             If the counters cannot be read
+	 */
+	public long getRequestCount(LaunchMode mode, boolean controller,
+			PortOffsetAllocator.Binding binding) throws IOException {
+		ObjectNode operation = operation("read-attribute", serverAddress(mode,
+				controller, binding.getContainerId(), "subsystem", "web",
+				"connector", "*"));
+		operation.put("name", "requestCount");
+		long requests = 0;
+		for (JsonNode connector : execute(binding, operation)) {
+			requests += connector.path("result").getValueAsLong();
+		}
+		return requests;
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Small HTTP server of the application master, used by the containers and
+ * tools to talk to it.
+ *
+ * It listens on an ephemeral port of the AM's host. Handlers are plain
+ * {@link HttpHandler}s; {@link #getParameters(HttpExchange)} and
+ * {@link #respond(HttpExchange, int, String, String)} cover what they
+ * usually need. A handler that throws gets a 500 response.
+ */
+public class MasterHttpServer {
+
+	private static final Logger LOG = Logger.getLogger(MasterHttpServer.class
+			.getName());
+
+	private static final int NUM_THREADS = 2;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String host;
+
+	/**
+	 * Bind the server. Handlers are added before {@link #start()}.
+	 *
+	 * @param host
+	 *            Host name to listen on
+	 * @throws IOException
+	 *             If no port can be bound
+	 */
+	public MasterHttpServer(String host) throws IOException {
+		this.host = host;
+		server = HttpServer.create(new InetSocketAddress(host, 0), 0);
+		executor = Executors.newFixedThreadPool(NUM_THREADS);
+		server.setExecutor(executor);
+	}
+
+	/**
+	 * @param path
+	 *            Path the handler serves, including sub-paths
+	 * @param handler
+	 *            Handler of the requests
+	 */
+	public void addHandler(String path, final HttpHandler handler) {
+		server.createContext(path, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handler.handle(exchange);
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Problem handling "
+							+ exchange.getRequestURI(), e);
+					respond(exchange, 500, "text/plain", e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		LOG.info("Application master HTTP server listening at " + getUrl());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return Base URL of the server, without a trailing slash
+	 */
+	public String getUrl() {
+		return "http://" + host + ":" + getPort();
+	}
+
+	/**
+	 * Read the parameters of a request, from the query string and, for a
+	 * POST, from a form encoded body.
+	 *
+	 * @param exchange
+	 *            Request being handled
+	 * @return Parameters by name, the last value winning
+	 * @throws IOException
+	 *             If the body cannot be read
+	 */
+	public static Map<String, String> getParameters(HttpExchange exchange)
+			throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parse(exchange.getRequestURI().getRawQuery(), parameters);
+		if ("POST".equals(exchange.getRequestMethod())) {
+			InputStream in = exchange.getRequestBody();
+			try {
+				parse(IOUtils.toString(in, "UTF-8"), parameters);
+			} finally {
+				Util.closeCloseable(in);
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Send a complete response.
+	 *
+	 * @param exchange
+	 *            Request being handled
+	 * @param status
+	 *            HTTP status code
+	 * @param contentType
+	 *            Content type of the body
+	 * @param body
+	 *            Response body
+	 * @throws IOException
+	 *             If the response cannot be written
+	 */
+	public static void respond(HttpExchange exchange, int status,
+			String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			Util.closeCloseable(out);
+		}
+	}
+
+	private static void parse(String encoded, Map<String, String> parameters)
+			throws UnsupportedEncodingException {
+		if (encoded == null || encoded.length() == 0) {
+			return;
+		}
+		for (String pair : encoded.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0) {
+				parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			} else {
+				parameters.put(URLDecoder.decode(pair.substring(0, eq),
+						"UTF-8"), URLDecoder.decode(pair.substring(eq + 1),
+						"UTF-8"));
+			}
+		}
+	}
+}
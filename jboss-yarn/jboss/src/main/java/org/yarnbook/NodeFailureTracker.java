@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Remembers on which nodes containers failed, to keep the application away
+ * from broken nodes and to slow down re-asks while containers keep failing.
+ *
+ * Every failure adds one to the score of its node. Scores decay
+ * exponentially with the configured half-life, so old failures are
+ * forgotten. A node whose score reaches the threshold is blacklisted until
+ * its score has decayed below half the threshold. No more than half of the
+ * nodes of the cluster are blacklisted at once, so a failure that is not the
+ * nodes' fault cannot exclude the whole cluster. The sum of all scores sets
+ * the delay before servers are asked for again.
+ */
+public class NodeFailureTracker {
+
+	private static final Logger LOG = Logger.getLogger(NodeFailureTracker.class
+			.getName());
+
+	private static final double MAX_BLACKLIST_FRACTION = 0.5;
+	private static final long INITIAL_RETRY_DELAY_MS = 1000;
+	private static final long MAX_RETRY_DELAY_MS = 60000;
+
+	/**
+	 * Failure history of one node.
+	 */
+	public static class Node {
+
+		private final String host;
+		private int launches;
+		private int failures;
+		private double score;
+		private long scoreTime;
+		private boolean blacklisted;
+
+		Node(String host) {
+			this.host = host;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getLaunches() {
+			return launches;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return Share of the containers launched on the node that failed
+		 */
+		public double getFailureRate() {
+			return launches == 0 ? 0 : (double) failures / launches;
+		}
+
+		public boolean isBlacklisted() {
+			return blacklisted;
+		}
+
+		@Override
+		public String toString() {
+			return host + "[launches=" + launches + ", failures=" + failures
+					+ String.format(", score=%.2f", score)
+					+ (blacklisted ? ", blacklisted" : "") + "]";
+		}
+	}
+
+	private final double threshold;
+	private final long halfLifeMs;
+	private final Map<String, Node> nodes = new TreeMap<String, Node>();
+
+	/**
+	 * @param threshold
+	 *            Score at which a node is blacklisted, 0 to never blacklist
+	 * @param halfLifeMs
+	 *            Time in which a node's score halves
+	 */
+	public NodeFailureTracker(double threshold, long halfLifeMs) {
+		if (halfLifeMs <= 0) {
+			throw new IllegalArgumentException(
+					"Node failure half-life must be positive, specified="
+							+ halfLifeMs);
+		}
+		this.threshold = threshold;
+		this.halfLifeMs = halfLifeMs;
+	}
+
+	/**
+	 * Record a container launched on a node.
+	 *
+	 * @param host
+	 *            Node of the container
+	 */
+	public synchronized void launched(String host) {
+		getNode(host).launches++;
+	}
+
+	/**
+	 * Record a container that failed on a node.
+	 *
+	 * @param host
+	 *            Node of the container
+	 * @param clusterNodes
+	 *            Number of nodes in the cluster
+	 * @return true if the node is newly blacklisted
+	 */
+	public synchronized boolean failed(String host, int clusterNodes) {
+		long now = System.currentTimeMillis();
+		Node node = getNode(host);
+		node.failures++;
+		decay(node, now);
+		node.score += 1;
+		if (threshold <= 0 || node.blacklisted || node.score < threshold) {
+			return false;
+		}
+		int maxBlacklisted = (int) (clusterNodes * MAX_BLACKLIST_FRACTION);
+		if (getBlacklisted().size() >= maxBlacklisted) {
+			LOG.warning("Not blacklisting " + node + ", already "
+					+ maxBlacklisted + " of " + clusterNodes
+					+ " nodes blacklisted");
+			return false;
+		}
+		node.blacklisted = true;
+		LOG.warning("Blacklisting " + node);
+		return true;
+	}
+
+	/**
+	 * Decay all scores and take the nodes that have recovered off the
+	 * blacklist.
+	 *
+	 * @return Nodes no longer blacklisted
+	 */
+	public synchronized List<String> expire() {
+		long now = System.currentTimeMillis();
+		List<String> recovered = new ArrayList<String>();
+		for (Node node : nodes.values()) {
+			decay(node, now);
+			if (node.blacklisted && node.score < threshold / 2) {
+				node.blacklisted = false;
+				recovered.add(node.host);
+				LOG.info("Taking " + node + " off the blacklist");
+			}
+		}
+		return recovered;
+	}
+
+	public synchronized boolean isBlacklisted(String host) {
+		Node node = nodes.get(host);
+		return node != null && node.blacklisted;
+	}
+
+	/**
+	 * @return Hosts currently blacklisted
+	 */
+	public synchronized List<String> getBlacklisted() {
+		List<String> blacklisted = new ArrayList<String>();
+		for (Node node : nodes.values()) {
+			if (node.blacklisted) {
+				blacklisted.add(node.host);
+			}
+		}
+		return blacklisted;
+	}
+
+	/**
+	 * @return Delay before servers are asked for again: none without recent
+	 *         failures, doubling with each recent failure up to a minute
+	 */
+	public synchronized long getRetryDelayMs() {
+		long now = System.currentTimeMillis();
+		double total = 0;
+		for (Node node : nodes.values()) {
+			decay(node, now);
+			total += node.score;
+		}
+		if (total < 1) {
+			return 0;
+		}
+		int doublings = (int) Math.min(16, Math.floor(total) - 1);
+		return Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << doublings);
+	}
+
+	/**
+	 * @return Failure history of every node a container ran on
+	 */
+	public synchronized List<Node> getNodes() {
+		return Collections.unmodifiableList(new ArrayList<Node>(nodes
+				.values()));
+	}
+
+	private Node getNode(String host) {
+		Node node = nodes.get(host);
+		if (node == null) {
+			node = new Node(host);
+			nodes.put(host, node);
+		}
+		return node;
+	}
+
+	private void decay(Node node, long now) {
+		if (node.score > 0) {
+			node.score *= Math.pow(0.5, (double) (now - node.scoreTime)
+					/ halfLifeMs);
+		}
+		node.scoreTime = now;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder failing = new StringBuilder();
+		for (Node node : nodes.values()) {
+			if (node.failures > 0) {
+				failing.append(failing.length() == 0 ? "" : ", ").append(node);
+			}
+		}
+		return "nodes=" + nodes.size() + ", blacklisted="
+				+ getBlacklisted().size() + ", failing=[" + failing + "]";
+	}
+}
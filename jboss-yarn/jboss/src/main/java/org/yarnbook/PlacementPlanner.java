@@ -0,0 +1,408 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
+import org.apache.hadoop.yarn.util.Records;
+
+/**
+ * Decides where the JBoss servers of a domain should run and turns that into
+ * a batch of container asks.
+ *
+ * With the SPREAD policy each ask names the node that currently holds the
+ * fewest of our containers on the least used rack, so servers are spread
+ * across racks first and nodes second. With PACK each ask names the node that
+ * already holds the most of our containers and still has room, so the domain
+ * occupies as few nodes as possible. Located asks do not relax locality;
+ * those still outstanding after the locality timeout are replaced with asks
+ * for any node at a separate, lower priority, because YARN does not allow
+ * strict and relaxed asks at the same priority. With ANY every ask is relaxed,
+ * which is the behaviour of YARN without a planner. Excluded nodes, e.g.
+ * blacklisted ones, are never named in an ask.
+ */
+public class PlacementPlanner {
+
+	private static final Logger LOG = Logger.getLogger(PlacementPlanner.class
+			.getName());
+
+	public enum Policy {
+		SPREAD, PACK, ANY;
+
+		public static Policy parse(String value) {
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown placement policy "
+						+ value + ", expected one of spread, pack or any");
+			}
+		}
+	}
+
+	private final Policy policy;
+	private final Resource capability;
+	private final Priority priority;
+	private final Priority relaxedPriority;
+
+	private final Map<String, NodeReport> nodes = new TreeMap<String, NodeReport>();
+	private final Map<String, Integer> containersPerHost = new HashMap<String, Integer>();
+	private final Map<String, Integer> containersAtReport = new HashMap<String, Integer>();
+	private final Map<ContainerId, String> containerHosts = new HashMap<ContainerId, String>();
+	private final Set<String> excluded = new HashSet<String>();
+
+	private final List<LocatedAsk> outstandingLocated = new LinkedList<LocatedAsk>();
+	private final List<ContainerRequest> outstandingRelaxed = new LinkedList<ContainerRequest>();
+
+	/**
+	 * @param policy
+	 *            Placement policy
+	 * @param capability
+	 *            Resources of every JBoss container
+	 * @param priority
+	 *            Priority of the asks
+	 */
+	public PlacementPlanner(Policy policy, Resource capability, int priority) {
+		this.policy = policy;
+		this.capability = capability;
+		this.priority = newPriority(priority);
+		this.relaxedPriority = policy == Policy.ANY ? this.priority
+				: newPriority(priority + 1);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Add, update or remove nodes known to the planner. The used resources of
+	 * a report are taken to include the containers the node held at that
+	 * moment; containers allocated or released since are accounted for
+	 * separately.
+	 *
+	 * @param reports
+	 *            Latest reports for some or all nodes of the cluster
+	 */
+	public synchronized void updateNodes(Collection<NodeReport> reports) {
+		for (NodeReport report : reports) {
+			String host = report.getNodeId().getHost();
+			if (report.getNodeState() == NodeState.RUNNING) {
+				nodes.put(host, report);
+				containersAtReport.put(host, count(containersPerHost, host));
+			} else {
+				nodes.remove(host);
+				containersAtReport.remove(host);
+			}
+		}
+		LOG.info("Placement planner knows " + nodes.size() + " running nodes");
+	}
+
+	/**
+	 * Stop or resume naming a node in asks.
+	 *
+	 * @param host
+	 *            Node to exclude or include
+	 * @param exclude
+	 *            Whether the node is excluded
+	 */
+	public synchronized void setExcluded(String host, boolean exclude) {
+		if (exclude) {
+			excluded.add(host);
+		} else {
+			excluded.remove(host);
+		}
+	}
+
+	/**
+	 * Plan a batch of container asks. The asks are recorded as outstanding
+	 * and must all be added to the RM.
+	 *
+	 * @param numContainers
+	 *            Number of containers to ask for
+	 * @return Asks to send to the RM
+	 */
+	public synchronized List<ContainerRequest> plan(int numContainers) {
+		List<ContainerRequest> asks = new ArrayList<ContainerRequest>(
+				numContainers);
+		Map<String, Integer> planned = new HashMap<String, Integer>();
+		for (LocatedAsk ask : outstandingLocated) {
+			increment(planned, ask.host);
+		}
+
+		for (int i = 0; i < numContainers; i++) {
+			String host = policy == Policy.ANY ? null : chooseHost(planned);
+			ContainerRequest request;
+			if (host == null) {
+				request = new ContainerRequest(capability, null, null,
+						relaxedPriority);
+				outstandingRelaxed.add(request);
+			} else {
+				request = new ContainerRequest(capability,
+						new String[] { host }, null, priority, false);
+				outstandingLocated.add(new LocatedAsk(host, request));
+				increment(planned, host);
+			}
+			asks.add(request);
+		}
+		LOG.info("Planned " + asks.size() + " container asks with policy "
+				+ policy + ", located=" + planned);
+		return asks;
+	}
+
+	/**
+	 * Remove the located asks that have been outstanding for longer than the
+	 * timeout. The caller must remove them from the RM and ask for the same
+	 * number of relaxed containers with {@link #planRelaxed(int)}.
+	 *
+	 * @param timeoutMs
+	 *            Age after which a located ask gives up on its node
+	 * @return Expired asks
+	 */
+	public synchronized List<ContainerRequest> expireLocated(long timeoutMs) {
+		long now = System.currentTimeMillis();
+		List<ContainerRequest> expired = new ArrayList<ContainerRequest>();
+		for (Iterator<LocatedAsk> it = outstandingLocated.iterator(); it
+				.hasNext();) {
+			LocatedAsk ask = it.next();
+			if (now - ask.createdAt >= timeoutMs) {
+				expired.add(ask.request);
+				it.remove();
+			}
+		}
+		if (!expired.isEmpty()) {
+			LOG.info(expired.size()
+					+ " located container asks timed out, relaxing locality");
+		}
+		return expired;
+	}
+
+	/**
+	 * Plan asks that may be satisfied by any node.
+	 *
+	 * @param numContainers
+	 *            Number of containers to ask for
+	 * @return Asks to send to the RM
+	 */
+	public synchronized List<ContainerRequest> planRelaxed(int numContainers) {
+		List<ContainerRequest> asks = new ArrayList<ContainerRequest>(
+				numContainers);
+		for (int i = 0; i < numContainers; i++) {
+			ContainerRequest request = new ContainerRequest(capability, null,
+					null, relaxedPriority);
+			outstandingRelaxed.add(request);
+			asks.add(request);
+		}
+		return asks;
+	}
+
+	/**
+	 * Withdraw outstanding asks that are no longer needed, relaxed ones first
+	 * and newest first. The caller must remove them from the RM.
+	 *
+	 * @param numContainers
+	 *            Number of asks to withdraw
+	 * @return Withdrawn asks
+	 */
+	public synchronized List<ContainerRequest> cancel(int numContainers) {
+		List<ContainerRequest> cancelled = new ArrayList<ContainerRequest>();
+		while (cancelled.size() < numContainers
+				&& !outstandingRelaxed.isEmpty()) {
+			cancelled.add(outstandingRelaxed.remove(outstandingRelaxed
+					.size() - 1));
+		}
+		while (cancelled.size() < numContainers
+				&& !outstandingLocated.isEmpty()) {
+			cancelled.add(outstandingLocated.remove(outstandingLocated
+					.size() - 1).request);
+		}
+		if (!cancelled.isEmpty()) {
+			LOG.info("Cancelled " + cancelled.size() + " container asks");
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Record an allocated container and find the outstanding ask it
+	 * satisfies. The caller must remove the returned ask from the RM. A
+	 * container on a node no located ask names, e.g. one whose ask has just
+	 * been relaxed, matches nothing, so the asks of other nodes stay
+	 * outstanding.
+	 *
+	 * @param container
+	 *            Container allocated by the RM
+	 * @return Matching ask, or null if no outstanding ask matches
+	 */
+	public synchronized ContainerRequest allocated(Container container) {
+		String host = container.getNodeId().getHost();
+		containerHosts.put(container.getId(), host);
+		increment(containersPerHost, host);
+
+		if (priority.equals(container.getPriority())
+				&& !outstandingLocated.isEmpty()) {
+			for (Iterator<LocatedAsk> it = outstandingLocated.iterator(); it
+					.hasNext();) {
+				LocatedAsk ask = it.next();
+				if (ask.host.equals(host)) {
+					it.remove();
+					return ask.request;
+				}
+			}
+			return null;
+		}
+		if (relaxedPriority.equals(container.getPriority())
+				&& !outstandingRelaxed.isEmpty()) {
+			return outstandingRelaxed.remove(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Forget a container that has completed or was released.
+	 *
+	 * @param containerId
+	 *            Container that is gone
+	 * @return Node the container was on, or null if it is not known
+	 */
+	public synchronized String released(ContainerId containerId) {
+		String host = containerHosts.remove(containerId);
+		if (host != null) {
+			Integer count = containersPerHost.get(host);
+			if (count != null && count > 1) {
+				containersPerHost.put(host, count - 1);
+			} else {
+				containersPerHost.remove(host);
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * @return Number of asks not yet satisfied by an allocation
+	 */
+	public synchronized int getOutstandingCount() {
+		return outstandingLocated.size() + outstandingRelaxed.size();
+	}
+
+	private String chooseHost(Map<String, Integer> planned) {
+		Map<String, Integer> perRack = new HashMap<String, Integer>();
+		for (NodeReport node : nodes.values()) {
+			String host = node.getNodeId().getHost();
+			int count = count(containersPerHost, host) + count(planned, host);
+			Integer rackCount = perRack.get(node.getRackName());
+			perRack.put(node.getRackName(), (rackCount == null ? 0
+					: rackCount) + count);
+		}
+
+		String best = null;
+		int bestRack = 0;
+		int bestNode = 0;
+		for (NodeReport node : nodes.values()) {
+			String host = node.getNodeId().getHost();
+			int nodeCount = count(containersPerHost, host)
+					+ count(planned, host);
+			if (excluded.contains(host) || !fits(node, count(planned, host))) {
+				continue;
+			}
+			int rackCount = perRack.get(node.getRackName());
+			boolean better;
+			if (best == null) {
+				better = true;
+			} else if (policy == Policy.PACK) {
+				better = nodeCount > bestNode;
+			} else {
+				better = rackCount < bestRack
+						|| (rackCount == bestRack && nodeCount < bestNode);
+			}
+			if (better) {
+				best = host;
+				bestRack = rackCount;
+				bestNode = nodeCount;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param planned
+	 *            Asks already planned for the node in this batch
+	 * @return true if the node has room for one more container after the
+	 *         planned ones and the containers it got since its last report
+	 */
+	private boolean fits(NodeReport node, int planned) {
+		Resource total = node.getCapability();
+		if (total == null) {
+			return true;
+		}
+		String host = node.getNodeId().getHost();
+		int added = planned + count(containersPerHost, host)
+				- count(containersAtReport, host);
+		Resource used = node.getUsed();
+		int freeMemory = total.getMemory()
+				- (used == null ? 0 : used.getMemory()) - added
+				* capability.getMemory();
+		int freeCores = total.getVirtualCores()
+				- (used == null ? 0 : used.getVirtualCores()) - added
+				* capability.getVirtualCores();
+		return freeMemory >= capability.getMemory()
+				&& freeCores >= capability.getVirtualCores();
+	}
+
+	private static int count(Map<String, Integer> counts, String host) {
+		Integer count = counts.get(host);
+		return count == null ? 0 : count;
+	}
+
+	private static void increment(Map<String, Integer> counts, String host) {
+		counts.put(host, count(counts, host) + 1);
+	}
+
+	private static Priority newPriority(int value) {
+		Priority pri = Records.newRecord(Priority.class);
+		pri.setPriority(value);
+		return pri;
+	}
+
+	private static class LocatedAsk {
+
+		final String host;
+		final ContainerRequest request;
+		final long createdAt = System.currentTimeMillis();
+
+		LocatedAsk(String host, ContainerRequest request) {
+			this.host = host;
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Hands out non-overlapping JBoss port offsets per NodeManager host.
+ *
+ * Each host has up to 64 slots kept as bits of one {@link AtomicLong}; a slot
+ * is claimed and freed with compare-and-set, so concurrent launcher threads
+ * never pick the same offset and never block each other. Slot n maps to port
+ * offset n * {@link JBossConstants#PORT_OFFSET_STEP}, so the first JBoss
+ * server on every host keeps the default ports.
+ */
+public class PortOffsetAllocator {
+
+	private static final Logger LOG = Logger
+			.getLogger(PortOffsetAllocator.class.getName());
+
+	public static final int MAX_SLOTS_PER_HOST = 64;
+
+	/**
+	 * Ports used by the JBoss server of one container.
+	 */
+	public static class Binding {
+
+		private final ContainerId containerId;
+		private final String host;
+		private final int slot;
+
+		Binding(ContainerId containerId, String host, int slot) {
+			this.containerId = containerId;
+			this.host = host;
+			this.slot = slot;
+		}
+
+		public ContainerId getContainerId() {
+			return containerId;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		public int getPortOffset() {
+			return slot * JBossConstants.PORT_OFFSET_STEP;
+		}
+
+		public int getManagementNativePort() {
+			return JBossConstants.MANAGEMENT_NATIVE_PORT + getPortOffset();
+		}
+
+		public int getManagementHttpPort() {
+			return JBossConstants.MANAGEMENT_HTTP_PORT + getPortOffset();
+		}
+
+		public int getHttpPort() {
+			return JBossConstants.HTTP_PORT + getPortOffset();
+		}
+
+		public int getAjpPort() {
+			return JBossConstants.AJP_PORT + getPortOffset();
+		}
+
+		@Override
+		public String toString() {
+			return containerId + "@" + host + "[offset=" + getPortOffset()
+					+ ", management=" + getManagementNativePort() + "/"
+					+ getManagementHttpPort() + ", http=" + getHttpPort()
+					+ ", ajp=" + getAjpPort() + "]";
+		}
+	}
+
+	private final ConcurrentMap<String, AtomicLong> slotsByHost = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<ContainerId, Binding> bindings = new ConcurrentHashMap<ContainerId, Binding>();
+
+	/**
+	 * Claim the lowest free port offset slot on a host for a container.
+	 * Allocating again for the same container returns its existing binding.
+	 *
+	 * @param containerId
+	 *            Container that will run the JBoss server
+	 * @param host
+	 *            NodeManager host of the container
+	 * @return Binding of the container
+	 * @throws IllegalStateException
+	 *             If all slots of the host are in use
+	 */
+	public Binding allocate(ContainerId containerId, String host) {
+		Binding existing = bindings.get(containerId);
+		if (existing != null) {
+			return existing;
+		}
+
+		AtomicLong slots = slotsByHost.get(host);
+		if (slots == null) {
+			AtomicLong newSlots = new AtomicLong();
+			slots = slotsByHost.putIfAbsent(host, newSlots);
+			if (slots == null) {
+				slots = newSlots;
+			}
+		}
+
+		while (true) {
+			long used = slots.get();
+			if (used == -1L) {
+				throw new IllegalStateException("All " + MAX_SLOTS_PER_HOST
+						+ " port offsets of " + host + " are in use");
+			}
+			int slot = Long.numberOfTrailingZeros(~used);
+			if (slots.compareAndSet(used, used | (1L << slot))) {
+				Binding binding = new Binding(containerId, host, slot);
+				bindings.put(containerId, binding);
+				LOG.info("Allocated JBoss ports " + binding);
+				return binding;
+			}
+		}
+	}
+
+	/**
+	 * Give back the slot of a container. Unknown containers are ignored, so
+	 * it is safe to call this for every stop and completion event.
+	 *
+	 * @param containerId
+	 *            Container whose JBoss server is gone
+	 * @return The released binding, or null
+	 */
+	public Binding release(ContainerId containerId) {
+		Binding binding = bindings.remove(containerId);
+		if (binding == null) {
+			return null;
+		}
+		AtomicLong slots = slotsByHost.get(binding.getHost());
+		long mask = 1L << binding.getSlot();
+		while (true) {
+			long used = slots.get();
+			if (slots.compareAndSet(used, used & ~mask)) {
+				break;
+			}
+		}
+		LOG.info("Released JBoss ports " + binding);
+		return binding;
+	}
+
+	public Binding getBinding(ContainerId containerId) {
+		return bindings.get(containerId);
+	}
+
+	/**
+	 * @return Live view of the bindings of all running containers
+	 */
+	public Map<ContainerId, Binding> getBindings() {
+		return Collections.unmodifiableMap(bindings);
+	}
+}
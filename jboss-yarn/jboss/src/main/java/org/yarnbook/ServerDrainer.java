@@ -0,0 +1,343 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+/**
+ * Takes JBoss servers out of service without cutting off the requests they
+ * are serving, before their containers are stopped.
+ *
+ * Draining a server disables it in mod_cluster, so the front ends send it no
+ * new requests, then polls the request counters of its web connectors
+ * through the management API. Once a counter has not moved for a poll
+ * interval the server is quiesced. All servers of one call drain in
+ * parallel on a small pool of the drainer's own threads and share one
+ * deadline, so a busy server cannot hold up the others beyond it. The
+ * listener is told as each server finishes, quiesced or not. The time each
+ * server took to drain and, once reported by the caller, to stop is logged.
+ * A server is forgotten once it has both drained and stopped.
+ */
+public class ServerDrainer {
+
+	private static final Logger LOG = Logger.getLogger(ServerDrainer.class
+			.getName());
+
+	private static final long POLL_INTERVAL_MS = 1000;
+
+	/**
+	 * Told about each server that finished draining.
+	 */
+	public interface Listener {
+		/**
+		 * @param binding
+		 *            Ports of the drained server's container
+		 * @param quiesced
+		 *            false if the deadline passed or the server could not be
+		 *            polled before it went quiet
+		 */
+		void drained(PortOffsetAllocator.Binding binding, boolean quiesced);
+	}
+
+	private final ManagementClient management;
+	private final LaunchMode mode;
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final ConcurrentMap<ContainerId, Drain> drains = new ConcurrentHashMap<ContainerId, Drain>();
+	private int numDrained;
+	private int numQuiesced;
+	private int numStopped;
+	private long maxDrainMs;
+	private long maxStopMs;
+
+	/**
+	 * @param management
+	 *            Runs the management operations
+	 * @param mode
+	 *            How JBoss runs in the containers
+	 * @param numThreads
+	 *            Maximum number of management operations running at once
+	 */
+	public ServerDrainer(ManagementClient management, LaunchMode mode,
+			int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException(
+					"Invalid number of drain threads, specified=" + numThreads);
+		}
+		this.management = management;
+		this.mode = mode;
+		executor = new ScheduledThreadPoolExecutor(numThreads,
+				new DrainerThreadFactory());
+	}
+
+	/**
+	 * Start draining servers. Servers already draining are left alone.
+	 *
+	 * @param servers
+	 *            Ports of the servers' containers
+	 * @param controllerId
+	 *            Container of the domain controller, or null
+	 * @param timeoutMs
+	 *            Time all servers together get to finish their requests
+	 * @param listener
+	 *            Told as each server finishes draining, may be null
+	 */
+	public void drain(Collection<PortOffsetAllocator.Binding> servers,
+			ContainerId controllerId, long timeoutMs, Listener listener) {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for (PortOffsetAllocator.Binding binding : servers) {
+			final Drain drain = new Drain(binding, binding.getContainerId()
+					.equals(controllerId), deadline, listener);
+			if (drains.putIfAbsent(binding.getContainerId(), drain) != null) {
+				continue;
+			}
+			LOG.info("Draining " + binding);
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						disable(drain);
+						poll(drain);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finish(drain, false);
+			}
+		}
+	}
+
+	/**
+	 * Wait until every server handed to {@link #drain} and not yet forgotten
+	 * finished draining.
+	 *
+	 * @param timeoutMs
+	 *            Longest time to wait
+	 * @return true if all servers finished
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitDrained(long timeoutMs)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining;
+		while (count(false) < drains.size()
+				&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+		return count(false) == drains.size();
+	}
+
+	/**
+	 * Record that the container of a drained server stopped.
+	 *
+	 * @param containerId
+	 *            Container that stopped or completed
+	 */
+	public void stopped(ContainerId containerId) {
+		Drain drain = drains.get(containerId);
+		if (drain == null) {
+			return;
+		}
+		synchronized (this) {
+			if (drain.stoppedTime >= 0) {
+				return;
+			}
+			drain.stoppedTime = System.currentTimeMillis();
+			numStopped++;
+			maxStopMs = Math.max(maxStopMs, drain.stoppedTime
+					- drain.startTime);
+			prune(drain);
+			notifyAll();
+		}
+		LOG.info("Container " + containerId + " stopped "
+				+ (drain.stoppedTime - drain.startTime)
+				+ " ms after it started draining");
+	}
+
+	/**
+	 * Wait until the containers of all servers handed to {@link #drain} and
+	 * not yet forgotten stopped.
+	 *
+	 * @param timeoutMs
+	 *            Longest time to wait
+	 * @return true if all containers stopped
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitStopped(long timeoutMs)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining;
+		while (count(true) < drains.size()
+				&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+		return count(true) == drains.size();
+	}
+
+	/**
+	 * Abandon running drains.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void disable(Drain drain) {
+		try {
+			management.execute(drain.binding, ManagementClient.operation(
+					"disable", ManagementClient.serverAddress(mode,
+							drain.controller, drain.binding.getContainerId(),
+							"subsystem", "modcluster")));
+		} catch (IOException e) {
+			LOG.info("Cannot disable " + drain.binding + " in mod_cluster: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the request counters of a server and finish its drain when they
+	 * stood still since the last poll, or when the deadline passed.
+	 */
+	private void poll(final Drain drain) {
+		long requests;
+		try {
+			requests = management.getRequestCount(mode, drain.controller,
+					drain.binding);
+		} catch (IOException e) {
+			LOG.info("Cannot read the requests of " + drain.binding + ": "
+					+ e.getMessage());
+			finish(drain, false);
+			return;
+		}
+		if (requests == drain.lastRequests) {
+			finish(drain, true);
+			return;
+		}
+		if (System.currentTimeMillis() + POLL_INTERVAL_MS > drain.deadline) {
+			finish(drain, false);
+			return;
+		}
+		drain.lastRequests = requests;
+		try {
+			executor.schedule(new Runnable() {
+				public void run() {
+					poll(drain);
+				}
+			}, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			finish(drain, false);
+		}
+	}
+
+	private void finish(Drain drain, boolean quiesced) {
+		synchronized (this) {
+			if (drain.drainedTime >= 0) {
+				return;
+			}
+			drain.drainedTime = System.currentTimeMillis();
+			drain.quiesced = quiesced;
+			numDrained++;
+			if (quiesced) {
+				numQuiesced++;
+			}
+			maxDrainMs = Math.max(maxDrainMs, drain.drainedTime
+					- drain.startTime);
+			prune(drain);
+			notifyAll();
+		}
+		LOG.info((quiesced ? "Drained " : "Gave up draining ")
+				+ drain.binding + " after "
+				+ (drain.drainedTime - drain.startTime) + " ms");
+		if (drain.listener != null) {
+			drain.listener.drained(drain.binding, quiesced);
+		}
+	}
+
+	/**
+	 * Forget a server once it has both drained and stopped, so later waits
+	 * only count the servers still in progress.
+	 */
+	private void prune(Drain drain) {
+		if (drain.drainedTime >= 0 && drain.stoppedTime >= 0) {
+			drains.remove(drain.binding.getContainerId(), drain);
+		}
+	}
+
+	private synchronized int count(boolean stopped) {
+		int count = 0;
+		for (Drain drain : drains.values()) {
+			if ((stopped ? drain.stoppedTime : drain.drainedTime) >= 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ServerDrainer" + ", draining=" + drains.size() + ", drained="
+				+ numDrained + ", quiesced=" + numQuiesced + ", stopped="
+				+ numStopped + ", maxDrainMs=" + maxDrainMs + ", maxStopMs="
+				+ maxStopMs;
+	}
+
+	/**
+	 * Drain state of one server. Times are -1 until reached.
+	 */
+	private static class Drain {
+
+		final PortOffsetAllocator.Binding binding;
+		final boolean controller;
+		final long deadline;
+		final Listener listener;
+		final long startTime = System.currentTimeMillis();
+		volatile long lastRequests = -1;
+		long drainedTime = -1;
+		long stoppedTime = -1;
+		boolean quiesced;
+
+		Drain(PortOffsetAllocator.Binding binding, boolean controller,
+				long deadline, Listener listener) {
+			this.binding = binding;
+			this.controller = controller;
+			this.deadline = deadline;
+			this.listener = listener;
+		}
+	}
+
+	private static class DrainerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ServerDrainer #"
+					+ threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Summary of the domain's health for monitoring, built ahead of time so
+ * polling it costs the application master nothing but a string.
+ *
+ * The summary is refreshed periodically from the application master's own
+ * state, never from the RM. It is served as key=value lines, easy to read
+ * from a shell script: the state of the application master, the wanted,
+ * running and live servers, where live means listed in the endpoint
+ * registry, the failed containers of the last hour, and the time to ready
+ * of the servers asked for since the last scale event. The age of the
+ * summary is added when it is served, so a stuck refresh shows.
+ */
+public class ServiceStatus {
+
+	private static final long FAILURE_WINDOW_MS = 3600 * 1000L;
+
+	private final AllocationTracker allocation;
+	private final LifecycleMetrics metrics;
+	private final EndpointRegistry endpoints;
+
+	/** Times and failure totals of the refreshes of the last hour */
+	private final Deque<long[]> failureSamples = new ArrayDeque<long[]>();
+
+	private volatile String state = "starting";
+	private volatile String text = "";
+	private volatile long updated;
+
+	/**
+	 * @param allocation
+	 *            Servers of the domain
+	 * @param metrics
+	 *            Lifecycle counters and times
+	 * @param endpoints
+	 *            Live servers
+	 */
+	public ServiceStatus(AllocationTracker allocation,
+			LifecycleMetrics metrics, EndpointRegistry endpoints) {
+		this.allocation = allocation;
+		this.metrics = metrics;
+		this.endpoints = endpoints;
+	}
+
+	/**
+	 * @param state
+	 *            State of the application master, e.g. running or finishing
+	 */
+	public void setState(String state) {
+		this.state = state;
+		refresh();
+	}
+
+	/**
+	 * Rebuild the summary.
+	 */
+	public synchronized void refresh() {
+		long now = System.currentTimeMillis();
+		long failures = metrics.getNumFailedExits()
+				+ metrics.getNumLaunchFailures();
+		failureSamples.addLast(new long[] { now, failures });
+		while (failureSamples.size() > 1
+				&& failureSamples.getFirst()[0] < now - FAILURE_WINDOW_MS) {
+			failureSamples.removeFirst();
+		}
+		LatencyHistogram timeToReady = metrics.getScaleTimeToReady();
+		StringBuilder summary = new StringBuilder();
+		append(summary, "state", state);
+		append(summary, "target", allocation.getTargetCount());
+		append(summary, "running",
+				allocation.getCount(AllocationTracker.State.RUNNING));
+		append(summary, "live", endpoints.getNumEndpoints());
+		append(summary, "failures_last_hour", failures
+				- failureSamples.getFirst()[1]);
+		append(summary, "failures_total", failures);
+		append(summary, "scale_time", metrics.getScaleTime());
+		append(summary, "scale_ready", timeToReady.getCount());
+		append(summary, "scale_p99_time_to_ready_ms",
+				timeToReady.getPercentileMs(0.99));
+		append(summary, "updated", now);
+		text = summary.toString();
+		updated = now;
+	}
+
+	/**
+	 * @return The summary with its age in ms
+	 */
+	public String getText() {
+		return text + "age_ms=" + (System.currentTimeMillis() - updated)
+				+ "\n";
+	}
+
+	private static void append(StringBuilder summary, String key,
+			Object value) {
+		summary.append(key).append('=').append(value).append('\n');
+	}
+}
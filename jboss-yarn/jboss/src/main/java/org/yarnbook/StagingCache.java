@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+
+/**
+ * Content addressed staging area for the artifacts the client ships with an
+ * application.
+ *
+ * An artifact is stored under the SHA-1 of its content, so submitting the
+ * same jar again reuses the copy already in the file system instead of
+ * uploading it, and concurrent submissions of different content never write
+ * to the same path. Uploads go to a temporary file that is renamed into
+ * place. Every use touches a marker next to the artifact and records a
+ * reference naming the application. An entry is only removed when its
+ * marker is older than the maximum age and none of the applications
+ * referencing it is still live.
+ */
+public class StagingCache {
+
+	private static final Logger LOG = Logger.getLogger(StagingCache.class
+			.getName());
+
+	private static final String USED_MARKER = ".used";
+	private static final String APP_REFERENCE = ".app-";
+
+	private final FileSystem fs;
+	private final Path root;
+
+	/**
+	 * @param fs
+	 *            File system holding the cache
+	 * @param root
+	 *            Directory of the cache
+	 */
+	public StagingCache(FileSystem fs, Path root) {
+		this.fs = fs;
+		this.root = root;
+	}
+
+	/**
+	 * Make a local file available in the cache, uploading it only if no
+	 * file with the same content is there yet.
+	 *
+	 * @param localFile
+	 *            File on the local file system
+	 * @param name
+	 *            Name of the file in the cache
+	 * @param appId
+	 *            Application the file is staged for
+	 * @return Path of the cached copy
+	 * @throws IOException
+	 *             If the file cannot be hashed or uploaded
+	 */
+	public Path stage(Path localFile, String name, ApplicationId appId)
+			throws IOException {
+		String hash;
+		InputStream in = FileSystem.getLocal(fs.getConf()).open(localFile);
+		try {
+			hash = DigestUtils.shaHex(in);
+		} finally {
+			Util.closeCloseable(in);
+		}
+
+		Path dir = new Path(root, hash);
+		Path cached = new Path(dir, name);
+		// Claim the entry before looking for the file, so that a concurrent
+		// clean keeps it
+		fs.create(new Path(dir, APP_REFERENCE + appId), true).close();
+		touch(fs, cached);
+		if (fs.exists(cached)) {
+			LOG.info("Reusing staged " + cached + " for " + localFile);
+		} else {
+			Path tmp = new Path(dir, "." + name + "."
+					+ System.currentTimeMillis() + ".tmp");
+			LOG.info("Uploading " + localFile + " to " + cached);
+			fs.copyFromLocalFile(false, true, localFile, tmp);
+			if (!fs.rename(tmp, cached)) {
+				fs.delete(tmp, false);
+				if (!fs.exists(cached)) {
+					throw new IOException("Problem staging " + localFile
+							+ " as " + cached);
+				}
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Mark a cached file as used, e.g. periodically while an application
+	 * that may still localize it runs.
+	 *
+	 * @param fs
+	 *            File system holding the cache
+	 * @param cached
+	 *            Path returned by {@link #stage(Path, String)}
+	 * @throws IOException
+	 *             If the marker cannot be written
+	 */
+	public static void touch(FileSystem fs, Path cached) throws IOException {
+		fs.create(new Path(cached.getParent(), USED_MARKER), true).close();
+	}
+
+	/**
+	 * Remove the entries that were not used within the maximum age and are
+	 * not referenced by a live application.
+	 *
+	 * @param maxAgeMs
+	 *            Maximum time since the last use
+	 * @param liveApps
+	 *            Ids of the applications that have not finished
+	 * @return Number of removed entries
+	 */
+	public int clean(long maxAgeMs, Set<String> liveApps) {
+		int removed = 0;
+		long oldest = System.currentTimeMillis() - maxAgeMs;
+		try {
+			if (!fs.exists(root)) {
+				return 0;
+			}
+			for (FileStatus entry : fs.listStatus(root)) {
+				if (!entry.isDirectory()) {
+					continue;
+				}
+				Path marker = new Path(entry.getPath(), USED_MARKER);
+				long lastUsed = fs.exists(marker) ? fs.getFileStatus(marker)
+						.getModificationTime() : entry.getModificationTime();
+				if (lastUsed >= oldest
+						|| isReferenced(entry.getPath(), liveApps)) {
+					continue;
+				}
+				if (fs.delete(entry.getPath(), true)) {
+					LOG.info("Removed stale staged " + entry.getPath());
+					removed++;
+				}
+			}
+		} catch (IOException e) {
+			LOG.info("Problem cleaning staging cache " + root + ": "
+					+ e.getMessage());
+		}
+		return removed;
+	}
+
+	private boolean isReferenced(Path entry, Set<String> liveApps)
+			throws IOException {
+		for (FileStatus file : fs.listStatus(entry)) {
+			String fileName = file.getPath().getName();
+			if (fileName.startsWith(APP_REFERENCE)
+					&& liveApps.contains(fileName.substring(APP_REFERENCE
+							.length()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
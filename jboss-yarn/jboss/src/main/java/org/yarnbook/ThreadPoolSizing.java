@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+/**
+ * Sizes the thread pools of a JBoss server from the virtual cores of its
+ * container.
+ *
+ * Request threads of the web connector mostly wait on I/O, so the connector
+ * gets a generous number per core. The EJB pool runs asynchronous and remote
+ * invocations and gets a few threads per core.
+ */
+public class ThreadPoolSizing {
+
+	private static final int WEB_CONNECTIONS_PER_VCORE = 32;
+	private static final int MIN_WEB_CONNECTIONS = 16;
+	private static final int EJB_THREADS_PER_VCORE = 4;
+	private static final int MIN_EJB_THREADS = 8;
+
+	private final int virtualCores;
+
+	/**
+	 * @param virtualCores
+	 *            Virtual cores granted to the container
+	 */
+	public ThreadPoolSizing(int virtualCores) {
+		this.virtualCores = Math.max(1, virtualCores);
+	}
+
+	public int getVirtualCores() {
+		return virtualCores;
+	}
+
+	/**
+	 * @return max-connections of the HTTP connector of the web subsystem
+	 */
+	public int getWebMaxConnections() {
+		return Math.max(MIN_WEB_CONNECTIONS, virtualCores
+				* WEB_CONNECTIONS_PER_VCORE);
+	}
+
+	/**
+	 * @return max-threads of the default thread pool of the EJB3 subsystem
+	 */
+	public int getEjbMaxThreads() {
+		return Math.max(MIN_EJB_THREADS, virtualCores * EJB_THREADS_PER_VCORE);
+	}
+
+	@Override
+	public String toString() {
+		return "vcores=" + virtualCores + ", webMaxConnections="
+				+ getWebMaxConnections() + ", ejbMaxThreads="
+				+ getEjbMaxThreads();
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.yarnbook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Runs the rewriter on the configuration files shipped with JBoss AS
+ * 7.1.1.Final.
+ */
+public class DomainConfigRewriterTest {
+
+	private static final String EJB3_1_2 = "urn:jboss:domain:ejb3:1.2";
+	private static final String WEB_1_1 = "urn:jboss:domain:web:1.1";
+
+	private final ThreadPoolSizing threadPools = new ThreadPoolSizing(4);
+
+	@Test
+	public void testRenderDomainSizesThreadPools() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = getClass().getResourceAsStream(
+				"/jboss-as-7.1.1/domain.xml");
+		try {
+			DomainConfigRewriter.renderDomain(in, out, "yarn-group",
+					threadPools);
+		} finally {
+			in.close();
+		}
+		Document domain = parse(out);
+
+		// one default pool and one http connector per profile
+		assertPools(domain, 4);
+		assertConnectors(domain, 4);
+
+		NodeList groups = domain.getElementsByTagNameNS("*", "server-group");
+		Element group = (Element) groups.item(groups.getLength() - 1);
+		assertEquals("yarn-group", group.getAttribute("name"));
+		assertEquals("full-ha", group.getAttribute("profile"));
+	}
+
+	@Test
+	public void testRenderDomainWithoutSizingKeepsPools() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = getClass().getResourceAsStream(
+				"/jboss-as-7.1.1/domain.xml");
+		try {
+			DomainConfigRewriter.renderDomain(in, out, null, null);
+		} finally {
+			in.close();
+		}
+		NodeList maxThreads = parse(out).getElementsByTagNameNS(EJB3_1_2,
+				"max-threads");
+		assertTrue(maxThreads.getLength() > 0);
+		for (int i = 0; i < maxThreads.getLength(); i++) {
+			assertEquals("10",
+					((Element) maxThreads.item(i)).getAttribute("count"));
+		}
+	}
+
+	@Test
+	public void testRenderStandaloneSizesThreadPools() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = getClass().getResourceAsStream(
+				"/jboss-as-7.1.1/standalone.xml");
+		try {
+			DomainConfigRewriter.renderStandalone(in, out, threadPools);
+		} finally {
+			in.close();
+		}
+		Document standalone = parse(out);
+		assertPools(standalone, 1);
+		assertConnectors(standalone, 1);
+	}
+
+	private void assertPools(Document document, int expected) {
+		NodeList pools = document.getElementsByTagNameNS(EJB3_1_2,
+				"thread-pool");
+		int found = 0;
+		for (int i = 0; i < pools.getLength(); i++) {
+			Element pool = (Element) pools.item(i);
+			if (!"default".equals(pool.getAttribute("name"))) {
+				continue;
+			}
+			found++;
+			assertFalse("max-threads must not be an attribute",
+					pool.hasAttribute("max-threads"));
+			NodeList maxThreads = pool.getElementsByTagNameNS(EJB3_1_2,
+					"max-threads");
+			assertEquals(1, maxThreads.getLength());
+			assertEquals(String.valueOf(threadPools.getEjbMaxThreads()),
+					((Element) maxThreads.item(0)).getAttribute("count"));
+		}
+		assertEquals(expected, found);
+	}
+
+	private void assertConnectors(Document document, int expected) {
+		NodeList connectors = document.getElementsByTagNameNS(WEB_1_1,
+				"connector");
+		int found = 0;
+		for (int i = 0; i < connectors.getLength(); i++) {
+			Element connector = (Element) connectors.item(i);
+			if ("http".equals(connector.getAttribute("name"))) {
+				found++;
+				assertEquals(
+						String.valueOf(threadPools.getWebMaxConnections()),
+						connector.getAttribute("max-connections"));
+			} else {
+				assertFalse(connector.hasAttribute("max-connections"));
+			}
+		}
+		assertEquals(expected, found);
+	}
+
+	private static Document parse(ByteArrayOutputStream out) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(
+				new ByteArrayInputStream(out.toByteArray()));
+	}
+}
@@ -0,0 +1,176 @@
+#!/bin/bash
+
+# Licensed to the Apache Software Foundation (ASF) under one or more
+# contributor license agreements.  See the NOTICE file distributed with
+# this work for additional information regarding copyright ownership.
+# The ASF licenses this file to You under the Apache License, Version 2.0
+# (the "License"); you may not use this file except in compliance with
+# the License.  You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+VERSION="Version 1.0"
+
+PROGNAME=`/bin/basename $0`
+
+# Exit codes
+STATE_OK=0
+STATE_WARNING=1
+STATE_CRITICAL=2
+STATE_UNKNOWN=3
+
+# Status of the application master, see ServiceStatus
+STATUS_PATH="ws/v1/status"
+MAX_AGE_MS=60000
+
+version() {
+   echo "$PROGNAME - $VERSION"
+}
+
+usage() {
+   echo "Usage: $PROGNAME [-v] -u <am url> -w <live %> -c <live %> [-f <failures>] [-t <ms>]"
+}
+
+help() {
+   version
+   echo "Check a JBoss domain on YARN through the status of its application master\n"
+   echo "  -u  Tracking URL of the application master, or its RM web proxy URL"
+   echo "  -w  Warn below this % of the wanted servers live"
+   echo "  -c  Critical below this % of the wanted servers live"
+   echo "  -f  Warn at this many failed containers in the last hour, default 5"
+   echo "  -t  Warn when the p99 time to ready of the last scale event exceeds this many ms, default 600000\n"
+   usage
+}
+
+url=
+warn=
+critical=
+failures=5
+ready_ms=600000
+
+while [ "$1" ]; do
+   case "$1" in
+       -h | --help)
+           help
+           exit $STATE_OK
+           ;;
+       -V | --version)
+           version
+           exit $STATE_OK
+           ;;
+       -v | --verbose)
+           : $(( verbosity++ ))
+           shift
+           ;;
+       -u | --url)
+           if [[ -z "$2" || "$2" = -* ]] ; then
+               echo "$PROGNAME: Option '$1' requires an argument"
+               usage
+               exit $STATE_UNKNOWN
+           fi
+           url=$2
+           shift 2
+           ;;
+       -w | --warning | -c | --critical | -f | --failures | -t | --time-to-ready)
+           if [[ -z "$2" || "$2" = -* ]] ; then
+               echo "$PROGNAME: Option '$1' requires an argument"
+               usage
+               exit $STATE_UNKNOWN
+           elif [[ "$2" = +([0-9]) ]] ; then
+               thresh=$2
+           else
+               echo "$PROGNAME: Threshold must be integer"
+               usage
+               exit $STATE_UNKNOWN
+           fi
+           case "$1" in
+               -w | --warning) warn=$thresh ;;
+               -c | --critical) critical=$thresh ;;
+               -f | --failures) failures=$thresh ;;
+               *) ready_ms=$thresh ;;
+           esac
+           shift 2
+           ;;
+       -?)
+           usage
+           exit $STATE_OK
+           ;;
+       *)
+           echo "$PROGNAME: Invalid option '$1'"
+           usage
+           exit $STATE_UNKNOWN
+           ;;
+   esac
+done
+
+if [[ -z "$url" ]]; then
+   echo "$PROGNAME: Application master URL not set"
+   usage
+   exit $STATE_UNKNOWN
+elif [[ -z "$warn" || -z "$critical" ]]; then
+   echo "$PROGNAME: Threshold not set"
+   usage
+   exit $STATE_UNKNOWN
+elif [[ "$critical" -gt "$warn" ]]; then
+   echo "$PROGNAME: Warning live % should be more than critical live %"
+   usage
+   exit $STATE_UNKNOWN
+fi
+
+status=$(curl --silent --fail --max-time 10 "${url%/}/$STATUS_PATH")
+if [ $? -ne 0 ] ; then
+   echo "JBoss on YARN CRITICAL - no status from application master at $url"
+   exit $STATE_CRITICAL
+fi
+
+[ -n "$verbosity" ] && echo "$status"
+
+value() {
+   echo "$status" | grep "^$1=" | cut -d= -f2
+}
+
+state=$(value state)
+target=$(value target)
+live=$(value live)
+failed=$(value failures_last_hour)
+scale_ready=$(value scale_ready)
+p99=$(value scale_p99_time_to_ready_ms)
+age=$(value age_ms)
+
+if [[ -z "$target" || -z "$live" ]]; then
+   echo "JBoss on YARN UNKNOWN - unreadable status from $url"
+   exit $STATE_UNKNOWN
+fi
+
+if [[ "$target" -gt 0 ]]; then
+   pct=$(( live * 100 / target ))
+else
+   pct=100
+fi
+summary="$live/$target servers live, $failed failed containers in the last hour, p99 time to ready $p99 ms over $scale_ready servers"
+
+if [[ "$pct" -lt "$critical" ]] ; then
+   echo "JBoss on YARN CRITICAL - $summary"
+   exit $STATE_CRITICAL
+elif [[ "$state" != "running" ]] ; then
+   echo "JBoss on YARN WARN - application master $state, $summary"
+   exit $STATE_WARNING
+elif [[ "$age" -gt "$MAX_AGE_MS" ]] ; then
+   echo "JBoss on YARN WARN - status not refreshed for $age ms, $summary"
+   exit $STATE_WARNING
+elif [[ "$pct" -lt "$warn" || "$failed" -ge "$failures" ]] ; then
+   echo "JBoss on YARN WARN - $summary"
+   exit $STATE_WARNING
+elif [[ "$scale_ready" -gt 0 && "$p99" -gt "$ready_ms" ]] ; then
+   echo "JBoss on YARN WARN - slow scale event, $summary"
+   exit $STATE_WARNING
+else
+   echo "JBoss on YARN OK - $summary"
+   exit $STATE_OK
+fi